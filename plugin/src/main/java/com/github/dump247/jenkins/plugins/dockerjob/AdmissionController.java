@@ -0,0 +1,420 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.github.dump247.jenkins.plugins.dockerjob.util.ConfigUtil;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.SetMultimap;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.logging.Logger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newHashMap;
+import static java.lang.String.format;
+import static java.util.logging.Level.FINE;
+
+/**
+ * Decides which waiting job gets the next free slave in a cloud.
+ * <p/>
+ * Jobs are grouped by their top level folder (or by the job itself, if it is not in a folder).
+ * When jobs are waiting for capacity, the next slave goes to the group with the highest
+ * priority, then the group with the fewest running slaves relative to its weight, then the job
+ * that has been waiting longest. While the cloud has more free slots than there are waiting jobs,
+ * jobs are admitted without waiting in line. A job can also be limited to a maximum number of
+ * running slaves.
+ * <p/>
+ * Waiting jobs are kept in sorted sets, so each decision takes time logarithmic in the number of
+ * waiting jobs. A job that leaves the Jenkins queue is removed by {@link #cancelJob}, in time
+ * proportional to its number of waiting requests. A job that stops asking for any other reason is
+ * dropped after {@link #STALE_TIMEOUT}, before the next decision, so it does not count as waiting.
+ */
+public class AdmissionController {
+    private static final Logger LOG = Logger.getLogger(AdmissionController.class.getName());
+
+    /**
+     * A waiting job that has not asked for a slave for this long is no longer waiting.
+     */
+    public static final Duration STALE_TIMEOUT = Duration.standardMinutes(1);
+
+    private final String _cloudName;
+    private final Map<String, GroupConfig> _groupConfig;
+    private final int _maxSlavesPerJob;
+
+    /**
+     * Groups are kept once created. There is at most one per top level item in Jenkins.
+     */
+    private final Map<String, Group> _groups = newHashMap();
+
+    /**
+     * Waiters by request name, least recently seen first. Each request that asks again is moved to
+     * the end, so stale waiters are always at the front.
+     */
+    private final LinkedHashMap<String, Waiter> _waiters = new LinkedHashMap<String, Waiter>(16, 0.75f, true);
+
+    /**
+     * Waiters by job full name, so the requests of a job can be cancelled without a scan.
+     */
+    private final SetMultimap<String, Waiter> _jobWaiters = HashMultimap.create();
+    private final Multiset<String> _runningJobs = HashMultiset.create();
+
+    /**
+     * Groups that have waiting jobs, in the order they get slaves.
+     */
+    private final TreeSet<Group> _waitingGroups = new TreeSet<Group>(GROUP_ORDER);
+    private long _sequence;
+
+    /**
+     * @param cloudName       name of the cloud, for logging
+     * @param groupConfig     weight and priority of each group, see {@link #parseGroupConfig}
+     * @param maxSlavesPerJob maximum number of running slaves for a single job, 0 for no limit
+     */
+    public AdmissionController(String cloudName, Map<String, GroupConfig> groupConfig, int maxSlavesPerJob) {
+        checkArgument(maxSlavesPerJob >= 0);
+        _cloudName = cloudName;
+        _groupConfig = ImmutableMap.copyOf(groupConfig);
+        _maxSlavesPerJob = maxSlavesPerJob;
+    }
+
+    /**
+     * Group a job belongs to: the top level folder of the job, or the job itself.
+     */
+    public static String getGroupName(String jobFullName) {
+        int index = jobFullName.indexOf('/');
+        return index < 0 ? jobFullName : jobFullName.substring(0, index);
+    }
+
+    /**
+     * Number of jobs waiting for a slave.
+     */
+    public synchronized int getWaitingCount() {
+        return _waiters.size();
+    }
+
+    /**
+     * Ask for a slave.
+     * <p/>
+     * If the cloud has a free slot for the request and every request in line, or has a free slot
+     * and the request is next in line, an admission is returned and the caller may provision a
+     * slave. The caller must then call {@link #admitted}, or {@link #cancel} if no slave was
+     * provisioned.
+     *
+     * @param requestName unique name of the request, the name of the slave's job
+     * @param jobFullName full name of the job, used for per-job limits and grouping
+     * @param freeSlots   number of slaves the cloud can currently start
+     * @return admission or null if the request must wait
+     */
+    public synchronized Admission tryAdmit(String requestName, String jobFullName, int freeSlots) {
+        Instant now = Instant.now();
+        removeStaleWaiters(now);
+        Waiter waiter = _waiters.get(requestName);
+
+        if (_maxSlavesPerJob > 0 && _runningJobs.count(jobFullName) >= _maxSlavesPerJob) {
+            // Do not hold up other jobs while this job is at its limit
+            if (waiter != null) {
+                removeWaiter(waiter);
+            }
+
+            LOG.log(FINE, "Job at slave limit: cloud={0} job={1} limit={2}", new Object[]{_cloudName, jobFullName, _maxSlavesPerJob});
+            return null;
+        }
+
+        if (freeSlots > _waiters.size() - (waiter == null ? 0 : 1)) {
+            // No need to wait when there is room for every request in line
+            if (waiter != null) {
+                removeWaiter(waiter);
+            }
+
+            return new Admission(jobFullName, getGroup(getGroupName(jobFullName)));
+        }
+
+        if (waiter == null) {
+            waiter = new Waiter(requestName, jobFullName, getGroup(getGroupName(jobFullName)), _sequence++);
+            addWaiter(waiter);
+        }
+
+        waiter.lastSeen = now;
+
+        Waiter next = _waitingGroups.first().waiters.first();
+
+        if (next != waiter || freeSlots <= 0) {
+            LOG.log(FINE, "Waiting for admission: cloud={0} job={1} next={2} waiting={3}",
+                    new Object[]{_cloudName, requestName, next.requestName, _waiters.size()});
+            return null;
+        }
+
+        return new Admission(waiter.jobFullName, waiter.group);
+    }
+
+    /**
+     * Record that a slave was provisioned for an admitted request.
+     */
+    public synchronized void admitted(String requestName, Admission admission) {
+        Waiter waiter = _waiters.get(requestName);
+
+        if (waiter != null) {
+            removeWaiter(waiter);
+        }
+
+        running(admission);
+    }
+
+    /**
+     * Stop waiting for an admitted request that did not get a slave. The request goes to the back
+     * of the line if it asks again.
+     */
+    public synchronized void cancel(String requestName) {
+        Waiter waiter = _waiters.get(requestName);
+
+        if (waiter != null) {
+            removeWaiter(waiter);
+        }
+    }
+
+    /**
+     * Stop waiting for all requests of a job, for example because the job left the queue.
+     */
+    public synchronized void cancelJob(String jobFullName) {
+        for (Waiter waiter : newArrayList(_jobWaiters.get(jobFullName))) {
+            LOG.log(FINE, "Cancelling request: cloud={0} job={1}", new Object[]{_cloudName, waiter.requestName});
+            removeWaiter(waiter);
+        }
+    }
+
+    /**
+     * Count a running slave that was admitted by another controller, for example the controller
+     * of the cloud before its configuration was saved.
+     *
+     * @return admission that counts against this controller, or null if the given admission was
+     * already released
+     */
+    public synchronized Admission adopt(Admission admission) {
+        if (admission._released) {
+            return null;
+        }
+
+        Admission adopted = new Admission(admission._jobFullName, getGroup(getGroupName(admission._jobFullName)));
+        running(adopted);
+        return adopted;
+    }
+
+    private void running(Admission admission) {
+        Group group = admission._group;
+        boolean waiting = !group.waiters.isEmpty();
+
+        // Groups must be removed from the sorted set before changing their sort key
+        if (waiting) {
+            _waitingGroups.remove(group);
+        }
+
+        group.running += 1;
+
+        if (waiting) {
+            _waitingGroups.add(group);
+        }
+
+        _runningJobs.add(admission._jobFullName);
+    }
+
+    private synchronized void released(Admission admission) {
+        Group group = admission._group;
+        boolean waiting = !group.waiters.isEmpty();
+
+        if (waiting) {
+            _waitingGroups.remove(group);
+        }
+
+        group.running -= 1;
+
+        if (waiting) {
+            _waitingGroups.add(group);
+        }
+
+        _runningJobs.remove(admission._jobFullName);
+    }
+
+    /**
+     * Drop waiters that stopped asking, so they neither hold up the line nor count as waiting.
+     */
+    private void removeStaleWaiters(Instant now) {
+        while (!_waiters.isEmpty()) {
+            Waiter oldest = _waiters.values().iterator().next();
+
+            if (!oldest.lastSeen.plus(STALE_TIMEOUT).isBefore(now)) {
+                break;
+            }
+
+            LOG.log(FINE, "Dropping stale request: cloud={0} job={1}", new Object[]{_cloudName, oldest.requestName});
+            removeWaiter(oldest);
+        }
+    }
+
+    private void addWaiter(Waiter waiter) {
+        Group group = waiter.group;
+        _waiters.put(waiter.requestName, waiter);
+        _jobWaiters.put(waiter.jobFullName, waiter);
+
+        if (!group.waiters.isEmpty()) {
+            _waitingGroups.remove(group);
+        }
+
+        group.waiters.add(waiter);
+        _waitingGroups.add(group);
+    }
+
+    private void removeWaiter(Waiter waiter) {
+        Group group = waiter.group;
+        _waiters.remove(waiter.requestName);
+        _jobWaiters.remove(waiter.jobFullName, waiter);
+        _waitingGroups.remove(group);
+        group.waiters.remove(waiter);
+
+        if (!group.waiters.isEmpty()) {
+            _waitingGroups.add(group);
+        }
+    }
+
+    private Group getGroup(String name) {
+        Group group = _groups.get(name);
+
+        if (group == null) {
+            GroupConfig config = _groupConfig.get(name);
+            group = new Group(name, config == null ? GroupConfig.DEFAULT : config);
+            _groups.put(name, group);
+        }
+
+        return group;
+    }
+
+    /**
+     * Parse group weights and priorities, one group per line in the format
+     * <code>name=weight</code> or <code>name=weight:priority</code>. Groups that are not listed
+     * have weight 1 and priority 0.
+     */
+    public static Map<String, GroupConfig> parseGroupConfig(String value) {
+        Map<String, GroupConfig> groups = newHashMap();
+
+        for (ConfigUtil.ConfigLine line : ConfigUtil.splitConfigLines(value)) {
+            String[] parts = line.value.split("=", 2);
+            String[] settings = parts.length > 1 ? parts[1].split(":", 2) : new String[0];
+
+            try {
+                int weight = Integer.parseInt(settings[0].trim());
+                int priority = settings.length > 1 ? Integer.parseInt(settings[1].trim()) : 0;
+
+                if (weight < 1) {
+                    throw new IllegalArgumentException(format("Weight must be 1 or greater (line %d): %s", line.lineNum, line.value));
+                }
+
+                groups.put(parts[0].trim(), new GroupConfig(weight, priority));
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException(format("Invalid group (line %d): %s", line.lineNum, line.value));
+            } catch (ArrayIndexOutOfBoundsException ex) {
+                throw new IllegalArgumentException(format("Invalid group (line %d): %s", line.lineNum, line.value));
+            }
+        }
+
+        return groups;
+    }
+
+    public static class GroupConfig {
+        public static final GroupConfig DEFAULT = new GroupConfig(1, 0);
+
+        public final int weight;
+        public final int priority;
+
+        public GroupConfig(int weight, int priority) {
+            this.weight = weight;
+            this.priority = priority;
+        }
+    }
+
+    /**
+     * Permission for a slave to run. Released when the slave is removed.
+     */
+    public class Admission {
+        private final String _jobFullName;
+        private final Group _group;
+        private volatile boolean _released;
+
+        private Admission(String jobFullName, Group group) {
+            _jobFullName = jobFullName;
+            _group = group;
+        }
+
+        /**
+         * Only the first call has an effect.
+         */
+        public void release() {
+            synchronized (AdmissionController.this) {
+                if (!_released) {
+                    _released = true;
+                    released(this);
+                }
+            }
+        }
+    }
+
+    private static class Group {
+        public final String name;
+        public final GroupConfig config;
+        public final TreeSet<Waiter> waiters = new TreeSet<Waiter>(WAITER_ORDER);
+        public int running;
+
+        public Group(String name, GroupConfig config) {
+            this.name = name;
+            this.config = config;
+        }
+    }
+
+    private static class Waiter {
+        public final String requestName;
+        public final String jobFullName;
+        public final Group group;
+        public final long sequence;
+        public Instant lastSeen;
+
+        public Waiter(String requestName, String jobFullName, Group group, long sequence) {
+            this.requestName = requestName;
+            this.jobFullName = jobFullName;
+            this.group = group;
+            this.sequence = sequence;
+        }
+    }
+
+    private static final Comparator<Waiter> WAITER_ORDER = new Comparator<Waiter>() {
+        public int compare(Waiter o1, Waiter o2) {
+            return Longs.compare(o1.sequence, o2.sequence);
+        }
+    };
+
+    /**
+     * Highest priority first, then lowest running/weight, then longest waiting job. Only groups
+     * with waiting jobs are ordered.
+     */
+    private static final Comparator<Group> GROUP_ORDER = new Comparator<Group>() {
+        public int compare(Group o1, Group o2) {
+            int result = Ints.compare(o2.config.priority, o1.config.priority);
+
+            if (result == 0) {
+                // Compare running/weight without dividing
+                result = Longs.compare((long) o1.running * o2.config.weight, (long) o2.running * o1.config.weight);
+            }
+
+            if (result == 0) {
+                result = Longs.compare(o1.waiters.first().sequence, o2.waiters.first().sequence);
+            }
+
+            return result == 0 ? o1.name.compareTo(o2.name) : result;
+        }
+    };
+}
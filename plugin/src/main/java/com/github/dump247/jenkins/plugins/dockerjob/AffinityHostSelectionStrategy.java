@@ -0,0 +1,52 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.SlaveOptions;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Ordering;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Longs;
+import hudson.Extension;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.util.List;
+
+/**
+ * Places each job on the same host each time, so the job reuses its container and workspace.
+ * <p/>
+ * Hosts are ordered by a rendezvous hash of the job name and host. A job keeps landing on the
+ * same host while the set of hosts is stable, and only the jobs on a removed host move elsewhere.
+ * If the preferred host is full, the job moves to the host with the next highest weight, rather
+ * than to the least loaded host.
+ */
+public class AffinityHostSelectionStrategy extends HostSelectionStrategy {
+    @DataBoundConstructor
+    public AffinityHostSelectionStrategy() {
+    }
+
+    @Override
+    public List<HostMetrics> rank(final SlaveOptions options, List<HostMetrics> hosts) {
+        return AVAILABILITY_ORDER.compound(new Ordering<HostMetrics>() {
+            @Override
+            public int compare(HostMetrics left, HostMetrics right) {
+                return Longs.compare(weight(options.getName(), right), weight(options.getName(), left));
+            }
+        }).sortedCopy(hosts);
+    }
+
+    private static long weight(String jobName, HostMetrics host) {
+        return Hashing.murmur3_128().newHasher()
+                .putString(jobName, Charsets.UTF_8)
+                .putByte((byte) 0)
+                .putString(host.host.toString(), Charsets.UTF_8)
+                .hash()
+                .asLong();
+    }
+
+    @Extension
+    public static class Descriptor extends HostSelectionStrategy.Descriptor {
+        @Override
+        public String getDisplayName() {
+            return "Job affinity";
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.SlaveOptions;
+import com.google.common.collect.Ordering;
+import com.google.common.primitives.Booleans;
+import com.google.common.primitives.Ints;
+import hudson.Extension;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.util.List;
+
+/**
+ * Places each slave on the fullest host that still has remaining capacity. This leaves hosts idle
+ * when the load drops, so an auto scaling group can remove them.
+ */
+public class BinPackHostSelectionStrategy extends HostSelectionStrategy {
+    private static final Ordering<HostMetrics> ORDER = AVAILABILITY_ORDER.compound(new Ordering<HostMetrics>() {
+        @Override
+        public int compare(HostMetrics left, HostMetrics right) {
+            int result = Ints.compare(left.getRemaining(), right.getRemaining());
+            return result != 0 ? result : Booleans.compare(right.hasImage, left.hasImage);
+        }
+    });
+
+    @DataBoundConstructor
+    public BinPackHostSelectionStrategy() {
+    }
+
+    @Override
+    public List<HostMetrics> rank(SlaveOptions options, List<HostMetrics> hosts) {
+        return ORDER.sortedCopy(hosts);
+    }
+
+    @Extension
+    public static class Descriptor extends HostSelectionStrategy.Descriptor {
+        @Override
+        public String getDisplayName() {
+            return "Bin packing";
+        }
+    }
+}
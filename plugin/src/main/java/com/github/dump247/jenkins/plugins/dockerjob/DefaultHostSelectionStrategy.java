@@ -0,0 +1,45 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.SlaveOptions;
+import com.google.common.collect.Ordering;
+import com.google.common.primitives.Booleans;
+import com.google.common.primitives.Ints;
+import hudson.Extension;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.util.List;
+
+/**
+ * Places each slave on the host with the most remaining capacity, preferring hosts that already
+ * have the slave image.
+ */
+public class DefaultHostSelectionStrategy extends HostSelectionStrategy {
+    private static final Ordering<HostMetrics> ORDER = AVAILABILITY_ORDER.compound(new Ordering<HostMetrics>() {
+        @Override
+        public int compare(HostMetrics left, HostMetrics right) {
+            // A host without the image has to pull it before the slave can start
+            if (left.getRemaining() > 0 && right.getRemaining() > 0 && left.hasImage != right.hasImage) {
+                return Booleans.compare(right.hasImage, left.hasImage);
+            }
+
+            return Ints.compare(right.getRemaining(), left.getRemaining());
+        }
+    });
+
+    @DataBoundConstructor
+    public DefaultHostSelectionStrategy() {
+    }
+
+    @Override
+    public List<HostMetrics> rank(SlaveOptions options, List<HostMetrics> hosts) {
+        return ORDER.sortedCopy(hosts);
+    }
+
+    @Extension(ordinal = 100)
+    public static class Descriptor extends HostSelectionStrategy.Descriptor {
+        @Override
+        public String getDisplayName() {
+            return "Most free capacity";
+        }
+    }
+}
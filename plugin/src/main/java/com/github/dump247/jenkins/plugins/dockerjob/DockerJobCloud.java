@@ -6,28 +6,27 @@ import com.cloudbees.plugins.credentials.CredentialsProvider;
 import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
 import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
 import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
+import com.github.dump247.jenkins.plugins.dockerjob.JobValidator.JobValidationResult;
 import com.github.dump247.jenkins.plugins.dockerjob.slaves.DirectoryMapping;
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.FileUploader;
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.HostReservation;
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.LaunchLimiter;
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.LaunchPermitTimeoutException;
 import com.github.dump247.jenkins.plugins.dockerjob.slaves.SlaveClient;
 import com.github.dump247.jenkins.plugins.dockerjob.slaves.SlaveOptions;
 import com.github.dump247.jenkins.plugins.dockerjob.util.ConfigUtil;
 import com.github.dump247.jenkins.plugins.dockerjob.util.JenkinsUtils;
 import com.github.dump247.jenkins.plugins.dockerjob.util.SshCredentialsProvider;
-import com.google.common.base.Function;
 import com.google.common.base.Optional;
 import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
 import com.google.common.base.Throwables;
-import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Ordering;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Sets;
 import com.google.common.net.HostAndPort;
-import com.google.common.util.concurrent.Futures;
-import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.ListeningExecutorService;
-import com.google.common.util.concurrent.MoreExecutors;
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Provider;
 import hudson.Extension;
 import hudson.model.AbstractProject;
@@ -35,7 +34,6 @@ import hudson.model.Computer;
 import hudson.model.Item;
 import hudson.model.Label;
 import hudson.model.labels.LabelAtom;
-import hudson.model.queue.MappingWorksheet;
 import hudson.security.ACL;
 import hudson.slaves.Cloud;
 import hudson.slaves.NodeProvisioner;
@@ -44,19 +42,15 @@ import hudson.util.ListBoxModel;
 import jenkins.model.Jenkins;
 import org.apache.commons.lang.RandomStringUtils;
 import org.joda.time.Duration;
-import org.joda.time.Instant;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 
 import java.io.IOException;
 import java.util.Collection;
-import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import static com.github.dump247.jenkins.plugins.dockerjob.util.ConfigUtil.parseEnvVars;
@@ -64,9 +58,7 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Strings.isNullOrEmpty;
 import static com.google.common.base.Strings.nullToEmpty;
-import static com.google.common.collect.Iterables.getFirst;
 import static com.google.common.collect.Lists.newArrayList;
-import static com.google.common.collect.Lists.newArrayListWithCapacity;
 import static com.google.common.collect.Maps.newHashMap;
 import static java.lang.String.format;
 import static java.util.Collections.unmodifiableSet;
@@ -80,7 +72,8 @@ import static java.util.logging.Level.WARNING;
  * <p/>
  * This cloud implementation differs from the normal implementation in that it does not directly
  * provision jenkins nodes. To ensure that a specific job gets mapped to a specific slave, the
- * actual provisioning is done in {@link DockerJobLoadBalancer}. This cloud implementation serves
+ * actual provisioning is done in {@link ProvisioningPipeline} and jobs are mapped to their slaves
+ * in {@link DockerJobLoadBalancer}. This cloud implementation serves
  * several important purposes:
  * <ul>
  * <li>Ensure the "Restrict where this project can be run" option is visible in job configuration</li>
@@ -89,15 +82,12 @@ import static java.util.logging.Level.WARNING;
  * </ul>
  */
 public class DockerJobCloud extends Cloud {
-    private static final Duration HOSTS_REFRESH_INTERVAL = Duration.standardSeconds(30);
     private static final Logger LOG = Logger.getLogger(DockerJobCloud.class.getName());
-    private static final ListeningExecutorService EXECUTOR = MoreExecutors.listeningDecorator(
-            Executors.newFixedThreadPool(
-                    5,
-                    new ThreadFactoryBuilder()
-                            .setNameFormat("docker-job-%d")
-                            .setDaemon(true)
-                            .build()));
+
+    /**
+     * Maximum time a slave waits for other launches on its host to finish.
+     */
+    private static final Duration LAUNCH_QUEUE_TIMEOUT = Duration.standardMinutes(5);
 
     private final DockerHostProvider _hostProvider;
     private final int _sshPort;
@@ -108,24 +98,64 @@ public class DockerJobCloud extends Cloud {
     private final String _directoryMappingString;
     private final String _slaveInitScript;
     private final String _environmentVarString;
+    private final int _hostConnectionThreads;
+    private final boolean _compressUploads;
+    private final int _warmPoolSize;
+    private final int _maxConcurrentLaunchesPerHost;
+    private final String _fairShareString;
+    private final int _maxSlavesPerJob;
+    private final int _hedgeLaunchPercentile;
+    private final int _maxHedgeLaunchPercent;
+    private final boolean _directConnection;
+    private final boolean _useLaunchDaemon;
+    private HostSelectionStrategy _hostSelectionStrategy;
+
+    /**
+     * Replaced by {@link AffinityHostSelectionStrategy}. Only read from old configurations.
+     */
+    @Deprecated
+    private boolean _jobAffinity;
 
     private transient Jenkins _jenkins;
-    private transient Instant _nextHostsRefresh;
-    private transient Map<HostAndPort, HostState> _hosts;
-    private transient Throwable _hostProviderError;
     private transient Provider<StandardUsernameCredentials> _credentialsProvider;
+    private transient HostInventory _inventory;
     private transient Set<LabelAtom> _labels;
     private transient Set<LabelAtom> _requiredLabels;
+    private transient JobValidator _validator;
     private transient List<DirectoryMapping> _directoryMappings;
     private transient Map<String, String> _environmentVars;
 
+    /**
+     * Number of {@link DockerJobSlave} nodes that belong to this cloud. Incremented when a slave
+     * is added, decremented when it is removed and periodically reconciled against the Jenkins
+     * node list by {@link DockerJobHostRefresher}.
+     */
+    private transient AtomicInteger _slaveCount;
+
+    private transient LaunchStats _launchStats;
+    private transient WarmPool _warmPool;
+    private transient HostReservations _reservations;
+    private transient LaunchLimiter _launchLimiter;
+    private transient AdmissionController _admission;
+
     @DataBoundConstructor
     public DockerJobCloud(String name, DockerHostProvider hostProvider, int sshPort,
                           String credentialsId, int maxJobsPerHost,
                           String labelString, String requiredLabelString,
                           String directoryMappingString,
                           String environmentVarString,
-                          String slaveInitScript) {
+                          String slaveInitScript,
+                          int hostConnectionThreads,
+                          boolean compressUploads,
+                          int warmPoolSize,
+                          int maxConcurrentLaunchesPerHost,
+                          String fairShareString,
+                          int maxSlavesPerJob,
+                          HostSelectionStrategy hostSelectionStrategy,
+                          int hedgeLaunchPercentile,
+                          int maxHedgeLaunchPercent,
+                          boolean directConnection,
+                          boolean useLaunchDaemon) {
         super(name);
 
         _hostProvider = checkNotNull(hostProvider);
@@ -137,22 +167,63 @@ public class DockerJobCloud extends Cloud {
         _directoryMappingString = nullToEmpty(directoryMappingString);
         _slaveInitScript = nullToEmpty(slaveInitScript);
         _environmentVarString = environmentVarString;
+        _hostConnectionThreads = hostConnectionThreads;
+        _compressUploads = compressUploads;
+        _warmPoolSize = warmPoolSize;
+        _maxConcurrentLaunchesPerHost = maxConcurrentLaunchesPerHost;
+        _fairShareString = nullToEmpty(fairShareString);
+        _maxSlavesPerJob = maxSlavesPerJob;
+        _hostSelectionStrategy = hostSelectionStrategy;
+        _hedgeLaunchPercentile = hedgeLaunchPercentile;
+        _maxHedgeLaunchPercent = maxHedgeLaunchPercent;
+        _directConnection = directConnection;
+        _useLaunchDaemon = useLaunchDaemon;
 
         checkArgument(sshPort >= 1 && sshPort <= 65535);
         checkArgument(maxJobsPerHost > 0);
+        checkArgument(hostConnectionThreads >= 0);
+        checkArgument(warmPoolSize >= 0);
+        checkArgument(maxConcurrentLaunchesPerHost >= 0);
+        checkArgument(maxSlavesPerJob >= 0);
+        checkArgument(hedgeLaunchPercentile >= 0 && hedgeLaunchPercentile <= 100);
+        checkArgument(maxHedgeLaunchPercent >= 0 && maxHedgeLaunchPercent <= 100);
 
         readResolve();
     }
 
     protected Object readResolve() {
-        _nextHostsRefresh = new Instant(0);
+        if (_hostSelectionStrategy == null) {
+            _hostSelectionStrategy = _jobAffinity ? new AffinityHostSelectionStrategy() : new DefaultHostSelectionStrategy();
+        }
+
         _jenkins = Jenkins.getInstance();
-        _hosts = newHashMap();
         _credentialsProvider = new SshCredentialsProvider(_jenkins, _credentialsId);
+        _inventory = new HostInventory(name, _jenkins, _hostProvider, _sshPort, _credentialsProvider, _slaveInitScript, _useLaunchDaemon,
+                _hostConnectionThreads > 0 ? _hostConnectionThreads : HostInventory.DEFAULT_MAX_THREADS,
+                new FileUploader(FileUploader.DEFAULT_CHUNK_SIZE, FileUploader.DEFAULT_WINDOW, _compressUploads));
         _labels = unmodifiableSet(Label.parse(_labelString));
         _requiredLabels = unmodifiableSet(Label.parse(_requiredLabelString));
+        _validator = new JobValidator(name, _requiredLabels, _labels);
         _directoryMappings = parseDirectoryMappings(_directoryMappingString);
         _environmentVars = parseEnvVars(_environmentVarString);
+        List<DockerJobSlave> slaves = getSlaves(_jenkins, name);
+        _slaveCount = new AtomicInteger(slaves.size());
+        _launchStats = LaunchStats.forCloud(name);
+        _warmPool = new WarmPool(name, _warmPoolSize);
+        _reservations = new HostReservations(_maxJobsPerHost);
+        _launchLimiter = new LaunchLimiter(_maxConcurrentLaunchesPerHost);
+        _admission = new AdmissionController(name, AdmissionController.parseGroupConfig(_fairShareString), _maxSlavesPerJob);
+
+        // Slaves of the cloud before its configuration was saved still hold hosts and admissions
+        _reservations.adopt(getOptions(slaves));
+        _warmPool.adopt(slaves);
+
+        for (DockerJobSlave slave : slaves) {
+            if (slave.getAdmission() != null) {
+                slave.setAdmission(_admission.adopt(slave.getAdmission()));
+            }
+        }
+
         return this;
     }
 
@@ -192,9 +263,132 @@ public class DockerJobCloud extends Cloud {
         return _environmentVarString;
     }
 
+    public int getHostConnectionThreads() {
+        return _hostConnectionThreads;
+    }
+
+    public boolean isCompressUploads() {
+        return _compressUploads;
+    }
+
+    public int getWarmPoolSize() {
+        return _warmPoolSize;
+    }
+
+    public int getMaxConcurrentLaunchesPerHost() {
+        return _maxConcurrentLaunchesPerHost;
+    }
+
+    public String getFairShareString() {
+        return _fairShareString;
+    }
+
+    public int getMaxSlavesPerJob() {
+        return _maxSlavesPerJob;
+    }
+
+    public int getHedgeLaunchPercentile() {
+        return _hedgeLaunchPercentile;
+    }
+
+    public int getMaxHedgeLaunchPercent() {
+        return _maxHedgeLaunchPercent;
+    }
+
+    /**
+     * Check if slaves connect directly to the master with the inbound (JNLP) slave protocol,
+     * rather than through the SSH session that launched them.
+     */
+    public boolean isDirectConnection() {
+        return _directConnection;
+    }
+
+    /**
+     * Check if slave containers are started by the launch daemon on each host.
+     *
+     * @see SlaveClient#createSlave(SlaveOptions, boolean)
+     */
+    public boolean isUseLaunchDaemon() {
+        return _useLaunchDaemon;
+    }
+
+    /**
+     * Time after which a launch that has not connected is hedged with a second launch on another
+     * host: the configured percentile of recent launch latencies.
+     *
+     * @return delay or absent if hedging is disabled or there are not enough recent launches
+     */
+    public Optional<Duration> getHedgeDelay() {
+        if (_hedgeLaunchPercentile == 0 || _maxHedgeLaunchPercent == 0) {
+            return Optional.absent();
+        }
+
+        return _launchStats.getLatencyPercentile(_hedgeLaunchPercentile);
+    }
+
+    /**
+     * Take a hedged launch from the cloud's budget. A hedged launch that does not start must be
+     * returned with {@link #cancelHedge()}.
+     * <p/>
+     * The budget is kept for each cloud: the hedge delay comes from the cloud's own launch
+     * latencies, and hedged launches add load to the cloud's own hosts.
+     *
+     * @return false if hedged launches already make up the maximum share of launches
+     */
+    public boolean tryHedge() {
+        return _launchStats.tryHedge(_maxHedgeLaunchPercent);
+    }
+
+    /**
+     * Return a hedged launch that did not start to the cloud's budget.
+     */
+    public void cancelHedge() {
+        _launchStats.cancelHedge();
+    }
+
+    /**
+     * Stop waiting to admit a job, because it left the queue.
+     */
+    public void cancelAdmission(String jobFullName) {
+        _admission.cancelJob(jobFullName);
+    }
+
+    /**
+     * Number of jobs waiting for the cloud to admit them.
+     */
+    public int getAdmissionQueueDepth() {
+        return _admission.getWaitingCount();
+    }
+
+    /**
+     * Number of slaves waiting for another launch on the same host to finish.
+     */
+    public int getLaunchQueueDepth() {
+        return _launchLimiter.getQueueLength();
+    }
+
+    public HostSelectionStrategy getHostSelectionStrategy() {
+        return _hostSelectionStrategy;
+    }
+
+    /**
+     * Container reuse, latency and hedging of slaves launched in this cloud since Jenkins started,
+     * including launches by the cloud before its configuration was saved.
+     */
+    public LaunchStats getLaunchStats() {
+        return _launchStats;
+    }
+
+    /**
+     * Number of host connections and pings waiting for a thread in this cloud.
+     */
+    public int getHostConnectionQueueDepth() {
+        return _inventory.getProbeQueueDepth();
+    }
+
     @Override
     public Collection<NodeProvisioner.PlannedNode> provision(Label label, int excessWorkload) {
-        // Don't provision a node here. Provisioning is handled in DockerJobLoadBalancer.
+        // Don't provision a node here. Provisioning is handled in ProvisioningPipeline.
         return ImmutableList.of();
     }
 
@@ -204,9 +398,16 @@ public class DockerJobCloud extends Cloud {
         return validateJob(label).isPresent();
     }
 
-    public ProvisionResult provisionJob(final String jobName, AbstractProject job, MappingWorksheet.WorkChunk task) throws Exception {
+    /**
+     * Provision a slave for a job. Called on a {@link ProvisioningPipeline} thread, so requests for
+     * different jobs may run at the same time.
+     *
+     * @param jobName name of the job, including the work chunk index if not the first chunk
+     * @param label   label expression of the work chunk
+     */
+    public ProvisionResult provisionJob(final String jobName, AbstractProject job, Label label) throws Exception {
         LOG.log(FINER, "provisionJob({0})", jobName);
-        JobValidationResult result = validateJob(task.assignedLabel).orNull();
+        JobValidationResult result = validateJob(label).orNull();
 
         if (result == null) {
             LOG.log(FINER, "Could not provision job {0}", jobName);
@@ -232,29 +433,122 @@ public class DockerJobCloud extends Cloud {
             throw new RuntimeException(format("Unable to find docker image for job %s", jobName));
         }
 
-        if (availableCapacity() <= 0) {
-            LOG.log(FINER, "Unavailable capacity for job %s", jobName);
+        // A warm slave runs the labeled image with the image environment, so it can only be used
+        // by jobs that do not change either
+        boolean warmEligible = _warmPool.isEnabled()
+                && imageName.equals(result.imageName)
+                && jobEnv.equals(result.environment);
+
+        // Wait for jobs that are ahead in line when the cloud is full. A ready warm slave is a
+        // free slot for jobs that can use it.
+        int freeSlots = availableCapacity() + (warmEligible && _warmPool.hasReady(result) ? 1 : 0);
+        AdmissionController.Admission admission = _admission.tryAdmit(jobName, job.getFullName(), freeSlots);
+
+        if (admission == null) {
             return ProvisionResult.NO_CAPACITY;
         }
 
-        // Provision DockerJobSlave
-        SlaveOptions options = new SlaveOptions(jobName, imageName);
-        options.setCleanEnvironment(resetJob);
-        options.setEnvironment(jobEnv);
+        boolean provisioned = false;
+
+        try {
+            if (warmEligible) {
+                DockerJobSlave warmSlave = _warmPool.claim(result);
+
+                if (warmSlave != null) {
+                    _warmPool.recordDemand(result);
+                    _admission.admitted(jobName, admission);
+                    provisioned = true;
+                    warmSlave.setAdmission(admission);
+                    warmSlave.claim(jobName);
+                    UnmappedSlaveIndex.add(warmSlave);
+                    return ProvisionResult.SUCCESS;
+                }
+            }
+
+            if (availableCapacity() <= 0) {
+                LOG.log(FINER, "Unavailable capacity for job {0}", jobName);
+                return ProvisionResult.NO_CAPACITY;
+            }
+
+            // Provision DockerJobSlave
+            SlaveOptions options = new SlaveOptions(jobName, imageName);
+            options.setCleanEnvironment(resetJob);
+            options.setEnvironment(jobEnv);
+            options.setDirectoryMappings(_directoryMappings);
+            options.setReservation(reserveHost(options));
+
+            if (options.getReservation() == null) {
+                LOG.log(FINER, "No host with free capacity for job {0}", jobName);
+                return ProvisionResult.NO_CAPACITY;
+            }
+
+            DockerJobSlave slave = addSlave(jobName, options, result.labels, false);
+            _admission.admitted(jobName, admission);
+            provisioned = true;
+            slave.setAdmission(admission);
+            UnmappedSlaveIndex.add(slave);
+        } finally {
+            if (!provisioned) {
+                _admission.cancel(jobName);
+            }
+        }
+
+        if (warmEligible) {
+            _warmPool.recordDemand(result);
+        }
+
+        return ProvisionResult.SUCCESS;
+    }
+
+    /**
+     * Start a warm slave for a labeled image. Called by {@link WarmPool#refill}.
+     *
+     * @return false if the cloud has no capacity for more slaves
+     */
+    private boolean launchWarmSlave(JobValidationResult image) throws IOException, hudson.model.Descriptor.FormException {
+        if (availableCapacity() <= 0) {
+            return false;
+        }
+
+        // Warm slaves are not reused between jobs, so there is no point in keeping the container
+        SlaveOptions options = new SlaveOptions("warm-" + image.imageName.replaceAll("[^a-zA-Z0-9_.-]", "_"), image.imageName);
+        options.setCleanEnvironment(true);
+        options.setEnvironment(image.environment);
         options.setDirectoryMappings(_directoryMappings);
+        options.setReservation(reserveHost(options));
 
+        if (options.getReservation() == null) {
+            return false;
+        }
+
+        DockerJobSlave slave = addSlave(options.getName(), options, image.labels, true);
+        slave.warmImage = image;
+        _warmPool.add(image, slave);
+        return true;
+    }
+
+    private DockerJobSlave addSlave(final String jobName, SlaveOptions options, Set<LabelAtom> labels, boolean warm) throws IOException, hudson.model.Descriptor.FormException {
+        final String imageName = options.getImage();
         final DockerJobSlave slave = new DockerJobSlave(
                 jobName + '-' + RandomStringUtils.random(6, true, true),
                 "Job running in docker container",
                 jobName,
                 "/",
                 ImmutableSet.<LabelAtom>builder()
-                        .addAll(result.labels)
+                        .addAll(labels)
                         .add(new LabelAtom("image/" + imageName))
                         .build(),
                 new DockerJobComputerLauncher(getDisplayName(), options));
+        slave.isWarm = warm;
 
-        _jenkins.addNode(slave);
+        try {
+            _jenkins.addNode(slave);
+        } catch (IOException ex) {
+            options.getReservation().release();
+            throw ex;
+        }
+
+        _slaveCount.incrementAndGet();
 
         Computer.threadPoolForRemoting.submit(new Runnable() {
             @Override
@@ -269,26 +563,156 @@ public class DockerJobCloud extends Cloud {
             }
         });
 
-        return ProvisionResult.SUCCESS;
+        return slave;
+    }
+
+    /**
+     * Start or stop warm slaves to follow the recent demand for each labeled image.
+     * <p/>
+     * Called periodically by {@link DockerJobHostRefresher}.
+     */
+    public void refillWarmPool() {
+        _warmPool.refill(new WarmPool.Launcher() {
+            public boolean launchWarmSlave(JobValidationResult image) {
+                try {
+                    return DockerJobCloud.this.launchWarmSlave(image);
+                } catch (Exception ex) {
+                    LOG.log(WARNING, format("Error starting warm slave: cloud=%s image=%s", getDisplayName(), image.imageName), ex);
+                    return false;
+                }
+            }
+        });
     }
 
+    /**
+     * Start the container for a slave on the host reserved for the slave.
+     * <p/>
+     * If the reservation was released by an earlier failed launch, or the reserved host is no
+     * longer available, a new host is reserved.
+     * <p/>
+     * If the reserved host already has the maximum number of launches in progress, the slave is
+     * moved to another host that can launch it immediately. If there is none, the launch waits for
+     * its turn on the reserved host. The caller must release the launch permit in the slave
+     * options once the slave has connected or failed to launch.
+     *
+     * @throws NoAvailableHostException if no host can take the slave
+     * @throws LaunchPermitTimeoutException if the launch waited too long for its turn on the host
+     */
     public SlaveClient.SlaveConnection createSlave(SlaveOptions options) throws IOException {
-        List<CapacityCount> successfulHosts = FluentIterable.from(listHosts())
-                .filter(SUCCESSFUL_HOSTS)
-                .transform(new Function<HostState, CapacityCount>() {
-                    public CapacityCount apply(HostState input) {
-                        return new CapacityCount(input.client, _maxJobsPerHost - input.client.sessionCount());
-                    }
-                })
-                .toSortedList(CAPACITY_ORDER);
+        return createSlave(options, Predicates.<HostState>alwaysTrue());
+    }
+
+    /**
+     * Start the container for a slave on a host that matches the filter.
+     *
+     * @see #createSlave(SlaveOptions)
+     */
+    public SlaveClient.SlaveConnection createSlave(SlaveOptions options, final Predicate<HostState> hostFilter) throws IOException {
+        HostReservation reservation = options.getReservation();
+        HostState host = reservation == null || reservation.isReleased()
+                ? null
+                : _inventory.getSnapshot().getHost(reservation.getHost());
+
+        if (host == null || !host.status.isAvailable() || !hostFilter.apply(host)) {
+            if (reservation != null) {
+                reservation.release();
+            }
+
+            reservation = reserveHost(options, hostFilter);
+
+            if (reservation == null) {
+                throw new NoAvailableHostException("No available hosts to create slave: " + options.getName());
+            }
+
+            options.setReservation(reservation);
+            host = _inventory.getSnapshot().getHost(reservation.getHost());
+
+            if (host == null || host.client == null) {
+                reservation.release();
+                throw new IOException("Reserved host was removed: " + reservation);
+            }
+        }
 
-        CapacityCount host = getFirst(successfulHosts, null);
+        LaunchLimiter.Permit permit = _launchLimiter.tryAcquire(reservation.getHost());
 
-        if (host == null) {
-            throw new RuntimeException("No available hosts to create slave");
+        if (permit == null) {
+            HostReservation other = reserveHost(options, new Predicate<HostState>() {
+                public boolean apply(HostState input) {
+                    return hostFilter.apply(input) && _launchLimiter.hasFreePermit(input.host);
+                }
+            });
+            HostState otherHost = other == null ? null : _inventory.getSnapshot().getHost(other.getHost());
+            permit = otherHost == null || otherHost.client == null ? null : _launchLimiter.tryAcquire(other.getHost());
+
+            if (permit != null) {
+                LOG.log(FINE, "Moved launch to idle host: job={0} from={1} to={2}", new Object[]{options.getName(), reservation, other});
+                reservation.release();
+                reservation = other;
+                host = otherHost;
+                options.setReservation(reservation);
+            } else {
+                if (other != null) {
+                    other.release();
+                }
+
+                LOG.log(FINE, "Waiting to launch: job={0} host={1}", new Object[]{options.getName(), reservation});
+                permit = _launchLimiter.acquire(reservation.getHost(), LAUNCH_QUEUE_TIMEOUT);
+            }
         }
 
-        return host.client.createSlave(options);
+        options.setLaunchPermit(permit);
+        LOG.log(FINE, "Creating slave: job={0} host={1}", new Object[]{options.getName(), reservation});
+
+        try {
+            return host.client.createSlave(options, _useLaunchDaemon);
+        } catch (IOException ex) {
+            permit.release();
+            throw ex;
+        } catch (RuntimeException ex) {
+            permit.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Start a second container for a slave that is slow to connect. The container is started on a
+     * host other than the ones already tried, and only on a host that can start it immediately.
+     */
+    public SlaveClient.SlaveConnection createHedgeSlave(SlaveOptions options, final Collection<HostAndPort> excludedHosts) throws IOException {
+        return createSlave(options, new Predicate<HostState>() {
+            public boolean apply(HostState input) {
+                return !excludedHosts.contains(input.host) && _launchLimiter.hasFreePermit(input.host);
+            }
+        });
+    }
+
+    /**
+     * Record that a slave failed to launch on a host, so the host is ranked below healthy hosts
+     * until it recovers.
+     */
+    public void launchFailed(HostAndPort host, Throwable error) {
+        LOG.log(WARNING, "Slave launch failed: cloud={0} host={1} error={2}", new Object[]{getDisplayName(), host, error});
+        _inventory.recordLaunchFailure(host, error);
+    }
+
+    /**
+     * Reserve a slot for a slave on the host chosen by the cloud's {@link HostSelectionStrategy}.
+     *
+     * @return reservation or null if all available hosts are full
+     */
+    private HostReservation reserveHost(SlaveOptions options) {
+        return reserveHost(options, Predicates.<HostState>alwaysTrue());
+    }
+
+    private HostReservation reserveHost(SlaveOptions options, Predicate<HostState> filter) {
+        List<HostMetrics> metrics = newArrayList();
+
+        for (HostState state : Iterables.filter(listHosts(), Predicates.and(HostState.AVAILABLE_HOSTS, filter))) {
+            metrics.add(new HostMetrics(state.host, state.status, _maxJobsPerHost, _reservations.count(state.host),
+                    state.probeLatency, state.lastFailureTime, state.hasImage(options.getImage())));
+        }
+
+        return _reservations.reserve(_hostSelectionStrategy.rank(options, metrics));
     }
 
     private static String getImageName(DockerJobProperty jobConfig, JobValidationResult result) {
@@ -304,140 +728,84 @@ public class DockerJobCloud extends Cloud {
     }
 
     private Optional<JobValidationResult> validateJob(Label label) {
-        Set<LabelAtom> allLabels = Sets.union(_requiredLabels, _labels);
+        return _validator.validate(label);
+    }
 
-        if (label == null) {
-            if (_requiredLabels.size() > 0) {
-                LOG.log(FINE, "Condition does not include required labels: condition={0} cloud={1} required={2}", new Object[]{label, getDisplayName(), _requiredLabels});
-                return Optional.absent();
-            } else {
-                LOG.log(FINE, "Condition matched cloud labels: condition={0} cloud={1} labels={2}", new Object[]{label, getDisplayName(), allLabels});
-                return Optional.of(new JobValidationResult(allLabels, null, ImmutableMap.<String, String>of()));
-            }
-        }
+    private int availableCapacity() {
+        return _inventory.getSnapshot().getAvailableHostCount() * _maxJobsPerHost - _slaveCount.get();
+    }
 
-        // Check that the condition includes all the required atoms
-        if (!label.listAtoms().containsAll(_requiredLabels)) {
-            LOG.log(FINE, "Condition does not include required labels: condition={0} cloud={1} required={2}", new Object[]{label, getDisplayName(), _requiredLabels});
-            return Optional.absent();
+    /**
+     * Called when a slave that belongs to this cloud is removed from Jenkins.
+     */
+    void slaveRemoved(DockerJobSlave slave) {
+        LOG.log(FINER, "Slave removed: cloud={0} slave={1}", new Object[]{getDisplayName(), slave.getNodeName()});
+        _slaveCount.decrementAndGet();
+        _warmPool.remove(slave);
+
+        HostReservation reservation = slave.getLauncher().getOptions().getReservation();
+
+        if (reservation != null) {
+            reservation.release();
         }
 
-        // Check if the condition matches the cloud's labels
-        if (label.matches(allLabels)) {
-            LOG.log(FINE, "Condition matched cloud labels: condition={0} cloud={1} labels={2}", new Object[]{label, getDisplayName(), allLabels});
-            return Optional.of(new JobValidationResult(allLabels, null, ImmutableMap.<String, String>of()));
+        if (slave.getAdmission() != null) {
+            slave.getAdmission().release();
         }
+    }
 
-        // Check if the condition matches the cloud's labels combined with a specific image
-        DockerJobGlobalConfiguration config = DockerJobGlobalConfiguration.get();
+    /**
+     * Correct the slave count and host reservations if they have drifted from the actual slave
+     * nodes, for example because a node was removed without notifying the cloud.
+     *
+     * @param slaves slave nodes of this cloud
+     */
+    void reconcileSlaves(List<DockerJobSlave> slaves) {
+        int actualCount = slaves.size();
+        int previousCount = _slaveCount.getAndSet(actualCount);
+
+        if (previousCount != actualCount) {
+            LOG.log(FINE, "Reconciled slave count: cloud={0} previous={1} actual={2}", new Object[]{getDisplayName(), previousCount, actualCount});
+        }
 
-        for (LabeledDockerImage image : config.getLabeledImages()) {
-            Set<LabelAtom> imageLabels = Sets.union(image.getLabels(), allLabels);
+        int released = _reservations.reconcile(getOptions(slaves));
 
-            if (label.matches(imageLabels)) {
-                LOG.log(FINE, "Condition matched cloud+image labels: condition={0} cloud={1} image={2} labels={3}", new Object[]{label, getDisplayName(), image.imageName, imageLabels});
-                return Optional.of(new JobValidationResult(imageLabels, image.imageName, image.getEnvironmentVars()));
-            } else {
-                LOG.log(FINE, "Condition does not match cloud+image labels: condition={0} cloud={1} image={2} labels={3}", new Object[]{label, getDisplayName(), image.imageName, imageLabels});
-            }
+        if (released > 0) {
+            LOG.log(FINE, "Released orphaned host reservations: cloud={0} count={1}", new Object[]{getDisplayName(), released});
         }
-
-        LOG.log(FINE, "Condition does not match cloud: condition={0} cloud={1} labels={2} images={3}", new Object[]{label, getDisplayName(), allLabels, config.getLabeledImages().size()});
-        return Optional.absent();
     }
 
-    private int availableCapacity() {
-        int maxCapacity = FluentIterable.from(listHosts()).filter(SUCCESSFUL_HOSTS).size() * _maxJobsPerHost;
-        int currentUsage = JenkinsUtils.getNodes(_jenkins, DockerJobSlave.class)
+    private static List<DockerJobSlave> getSlaves(Jenkins jenkins, final String cloudName) {
+        return JenkinsUtils.getNodes(jenkins, DockerJobSlave.class)
                 .filter(new Predicate<DockerJobSlave>() {
                     public boolean apply(DockerJobSlave input) {
-                        return input.getLauncher().getCloudName().equals(getDisplayName());
+                        return input.getLauncher().getCloudName().equals(cloudName);
                     }
                 })
-                .size();
-
-        return maxCapacity - currentUsage;
+                .toList();
     }
 
-    private Collection<HostState> listHosts() {
-        Instant now = Instant.now();
-
-        if (now.isAfter(_nextHostsRefresh)) {
-            _nextHostsRefresh = now.plus(HOSTS_REFRESH_INTERVAL);
+    private static List<SlaveOptions> getOptions(List<DockerJobSlave> slaves) {
+        List<SlaveOptions> options = newArrayList();
 
-            try {
-                Map<HostAndPort, HostState> newHosts = newHashMap();
-                Collection<HostAndPort> hosts = _hostProvider.listHosts();
-                List<ListenableFuture<HostState>> hostFutures = newArrayListWithCapacity(hosts.size());
-
-                for (HostAndPort host : hosts) {
-                    final HostAndPort targetHost = host.withDefaultPort(_sshPort);
-
-                    final HostState currentState = _hosts.get(targetHost);
-
-                    if (currentState == null || currentState.status == HostStatus.FAILED) {
-                        hostFutures.add(EXECUTOR.submit(new Callable<HostState>() {
-                            @Override
-                            public HostState call() throws Exception {
-                                SlaveClient client = null;
-                                try {
-                                    client = new SlaveClient(targetHost, _credentialsProvider);
-                                    String description = client.initialize(
-                                            _jenkins.getJnlpJars("slave.jar").getURL(),
-                                            nullToEmpty(_slaveInitScript));
-                                    return HostState.success(targetHost, description, client);
-                                } catch (Exception ex) {
-                                    if (client != null) {
-                                        client.close();
-                                    }
-
-                                    return HostState.failed(targetHost, ex);
-                                }
-                            }
-                        }));
-                    } else {
-                        // Ping the server to make sure it is still up
-                        hostFutures.add(EXECUTOR.submit(new Callable<HostState>() {
-                            @Override
-                            public HostState call() throws Exception {
-                                try {
-                                    currentState.client.ping();
-                                    return currentState;
-                                } catch (Exception ex) {
-                                    currentState.client.close();
-                                    return HostState.failed(targetHost, ex);
-                                }
-                            }
-                        }));
-                    }
-                }
+        for (DockerJobSlave slave : slaves) {
+            options.add(slave.getLauncher().getOptions());
+        }
 
-                if (hostFutures.size() > 0) {
-                    try {
-                        for (HostState state : Futures.allAsList(hostFutures).get()) {
-                            if (state.status == HostStatus.FAILED) {
-                                LOG.log(WARNING, "Error connecting to cloud host: host={0} error={1}", new Object[]{state.host, state.message});
-                            }
-
-                            newHosts.put(state.host, state);
-                        }
-                    } catch (InterruptedException ex) {
-                        Thread.currentThread().interrupt();
-                    } catch (ExecutionException ex) {
-                        throw Throwables.propagate(ex);
-                    }
-                }
+        return options;
+    }
 
-                _hosts = newHosts;
-                _hostProviderError = null;
-            } catch (Throwable ex) {
-                LOG.log(WARNING, "Error listing cloud hosts", ex);
-                _hosts = newHashMap();
-                _hostProviderError = ex;
-            }
-        }
+    private Collection<HostState> listHosts() {
+        return _inventory.getSnapshot().getHosts();
+    }
 
-        return _hosts.values();
+    /**
+     * Start a background refresh of the cloud's hosts.
+     * <p/>
+     * Called periodically by {@link DockerJobHostRefresher}.
+     */
+    public void refreshHosts() {
+        _inventory.scheduleRefresh();
     }
 
     private static List<DirectoryMapping> parseDirectoryMappings(String value) {
@@ -536,6 +904,51 @@ public class DockerJobCloud extends Cloud {
                     : FormValidation.error("Must be greater than 0");
         }
 
+        public FormValidation doCheckHostConnectionThreads(@QueryParameter int value) {
+            return value >= 0
+                    ? FormValidation.ok()
+                    : FormValidation.error("Must be 0 or greater");
+        }
+
+        public FormValidation doCheckFairShareString(@QueryParameter String value) {
+            try {
+                AdmissionController.parseGroupConfig(value);
+                return FormValidation.ok();
+            } catch (Exception ex) {
+                return FormValidation.error(ex.getMessage());
+            }
+        }
+
+        public FormValidation doCheckMaxSlavesPerJob(@QueryParameter int value) {
+            return value >= 0
+                    ? FormValidation.ok()
+                    : FormValidation.error("Must be 0 or greater");
+        }
+
+        public FormValidation doCheckMaxConcurrentLaunchesPerHost(@QueryParameter int value) {
+            return value >= 0
+                    ? FormValidation.ok()
+                    : FormValidation.error("Must be 0 or greater");
+        }
+
+        public FormValidation doCheckHedgeLaunchPercentile(@QueryParameter int value) {
+            return value >= 0 && value <= 100
+                    ? FormValidation.ok()
+                    : FormValidation.error("Must be between 0 and 100");
+        }
+
+        public FormValidation doCheckMaxHedgeLaunchPercent(@QueryParameter int value) {
+            return value >= 0 && value <= 100
+                    ? FormValidation.ok()
+                    : FormValidation.error("Must be between 0 and 100");
+        }
+
+        public FormValidation doCheckWarmPoolSize(@QueryParameter int value) {
+            return value >= 0
+                    ? FormValidation.ok()
+                    : FormValidation.error("Must be 0 or greater");
+        }
+
         public FormValidation doCheckSshPort(@QueryParameter int value) {
             return value >= 1 && value <= 65535
                     ? FormValidation.ok()
@@ -570,65 +983,4 @@ public class DockerJobCloud extends Cloud {
          */
         SUCCESS
     }
-
-    private static class HostState {
-        public final HostAndPort host;
-        public final HostStatus status;
-        public final String message;
-        public final SlaveClient client;
-
-        public HostState(HostAndPort host, HostStatus status, String message, SlaveClient client) {
-            this.host = host;
-            this.status = status;
-            this.message = message;
-            this.client = client;
-        }
-
-        public static HostState failed(HostAndPort host, Throwable error) {
-            return new HostState(host, HostStatus.FAILED, error.getMessage(), null);
-        }
-
-        public static HostState success(HostAndPort host, String message, SlaveClient client) {
-            return new HostState(host, HostStatus.SUCCESS, message, client);
-        }
-    }
-
-    private static class CapacityCount {
-        public final SlaveClient client;
-        public int remaining;
-
-        public CapacityCount(SlaveClient client, int capacity) {
-            this.client = client;
-            this.remaining = capacity;
-        }
-    }
-
-    private static class JobValidationResult {
-        private final Set<LabelAtom> labels;
-        private final String imageName;
-        private final Map<String, String> environment;
-
-        public JobValidationResult(Set<LabelAtom> labels, String imageName, Map<String, String> environment) {
-            this.labels = labels;
-            this.imageName = imageName;
-            this.environment = environment;
-        }
-    }
-
-    private static enum HostStatus {
-        FAILED,
-        SUCCESS
-    }
-
-    private static final Predicate<HostState> SUCCESSFUL_HOSTS = new Predicate<HostState>() {
-        public boolean apply(HostState input) {
-            return input.status == HostStatus.SUCCESS;
-        }
-    };
-
-    private static final Ordering<CapacityCount> CAPACITY_ORDER = Ordering.from(new Comparator<CapacityCount>() {
-        public int compare(CapacityCount o1, CapacityCount o2) {
-            return Integer.compare(o2.remaining, o1.remaining);
-        }
-    });
 }
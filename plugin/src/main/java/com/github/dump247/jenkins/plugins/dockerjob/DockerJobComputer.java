@@ -22,7 +22,7 @@ public class DockerJobComputer extends SlaveComputer {
 
     private boolean _hasAcceptedJob = false;
     private boolean _hasCompletedJob = false;
-    private Instant _nodeLaunchTimeMs = Instant.now();
+    private volatile Instant _nodeLaunchTimeMs = Instant.now();
 
     public DockerJobComputer(DockerJobSlave slave) {
         super(slave);
@@ -69,12 +69,43 @@ public class DockerJobComputer extends SlaveComputer {
         _nodeLaunchTimeMs = Instant.now();
     }
 
-    public boolean hasCompletedJob(Duration launchTimeout) {
+    /**
+     * Called when a warm slave is given to a job. The job must be accepted within the launch
+     * timeout, starting now.
+     */
+    public void claimed() {
+        _nodeLaunchTimeMs = Instant.now();
+    }
+
+    /**
+     * @param launchTimeout maximum time the slave may spend connecting
+     * @param acceptTimeout maximum time the slave may wait for its job once connected
+     */
+    public boolean hasCompletedJob(Duration launchTimeout, Duration acceptTimeout) {
+        // A launch may be waiting for other launches on the same host to finish
+        Duration timeout = isConnecting() ? launchTimeout : acceptTimeout;
+        boolean timedOut = _nodeLaunchTimeMs.plus(timeout).isBefore(Instant.now());
+
+        if (_slave.isWarm) {
+            // Waiting in the warm pool for a job, unless it failed to launch
+            return (isConnecting() || isOffline()) && timedOut;
+        }
+
         return hasCompletedJob() ||
-                (!hasAcceptedJob() && _nodeLaunchTimeMs.plus(launchTimeout).isBefore(Instant.now())) ||
+                (!hasAcceptedJob() && timedOut) ||
                 (hasAcceptedJob() && isOffline());
     }
 
+    /**
+     * Called when the node is removed from Jenkins, including nodes deleted by a user, so the
+     * cloud releases the slave's host reservation and admission.
+     */
+    @Override
+    protected void onRemoved() {
+        super.onRemoved();
+        _slave.removed();
+    }
+
     public void terminate() {
         LOG.log(FINE, "Terminating job node: name={0}", _slave.getNodeName());
         _hasCompletedJob = true;
@@ -1,32 +1,45 @@
 package com.github.dump247.jenkins.plugins.dockerjob;
 
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.HostReservation;
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.LaunchPermitTimeoutException;
 import com.github.dump247.jenkins.plugins.dockerjob.slaves.SlaveClient;
 import com.github.dump247.jenkins.plugins.dockerjob.slaves.SlaveOptions;
 import com.github.dump247.jenkins.plugins.dockerjob.util.JenkinsUtils;
-import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
+import com.google.common.base.Predicate;
 import com.google.common.base.Throwables;
+import com.google.common.net.HostAndPort;
 import hudson.Extension;
 import hudson.model.TaskListener;
 import hudson.remoting.Channel;
 import hudson.slaves.ComputerLauncher;
 import hudson.slaves.SlaveComputer;
 import jenkins.model.Jenkins;
+import org.joda.time.Duration;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.InterruptedIOException;
-import java.io.PrintStream;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Sets.newHashSet;
+import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.logging.Level.FINE;
-import static java.util.logging.Level.FINER;
-import static java.util.logging.Level.WARNING;
 
 public class DockerJobComputerLauncher extends ComputerLauncher {
     private static final Logger LOG = Logger.getLogger(DockerJobComputerLauncher.class.getName());
 
+    /**
+     * Maximum number of hosts a slave is launched on before the launch fails.
+     */
+    public static final int MAX_LAUNCH_ATTEMPTS = 3;
+
     private final String _cloudName;
     private final SlaveOptions _options;
 
@@ -39,71 +52,291 @@ public class DockerJobComputerLauncher extends ComputerLauncher {
         return _cloudName;
     }
 
+    public SlaveOptions getOptions() {
+        return _options;
+    }
+
     @Override
     public void launch(SlaveComputer computer, final TaskListener listener) throws IOException, InterruptedException {
         LOG.log(FINE, "Starting slave for {0}", _options.getName());
-        Optional<DockerJobCloud> cloud = JenkinsUtils.getCloud(Jenkins.getInstance(), DockerJobCloud.class, _cloudName);
+        Jenkins jenkins = Jenkins.getInstance();
+        Optional<DockerJobCloud> cloud = JenkinsUtils.getCloud(jenkins, DockerJobCloud.class, _cloudName);
 
         if (!cloud.isPresent()) {
             throw new RuntimeException("Unable to find cloud to launch slave: " + _cloudName);
         }
 
-        final SlaveClient.SlaveConnection connection = cloud.get().createSlave(_options);
+        if (cloud.get().isDirectConnection()) {
+            if (jenkins.getRootUrl() == null) {
+                throw new IOException("The Jenkins URL must be configured to connect slaves directly");
+            }
 
-        final Thread logReader = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                BufferedReader reader = null;
+            if (jenkins.getTcpSlaveAgentListener() == null) {
+                throw new IOException("The TCP port for JNLP slave agents must be enabled to connect slaves directly");
+            }
 
-                try {
-                    reader = new BufferedReader(new InputStreamReader(connection.getLog(), Charsets.UTF_8));
-                    PrintStream logger = listener.getLogger();
-                    String line;
+            _options.setDirectConnection(jenkins.getRootUrl(), computer.getName(), computer.getJnlpMac());
+        }
 
-                    while ((line = reader.readLine()) != null) {
-                        logger.println(line);
-                    }
-                } catch (InterruptedIOException ex) {
-                    LOG.log(FINER, "Log stream read thread cancelled for job " + _options.getName());
-                } catch (Throwable ex) {
-                    LOG.log(WARNING, "Error reading log stream for job " + _options.getName(), ex);
-                } finally {
-                    if (reader != null) {
-                        try {
-                            reader.close();
-                        } catch (IOException ex) {
-                            LOG.log(FINER, "Error closing log stream for job " + _options.getName(), ex);
+        final SlaveLaunch launch = connect(cloud.get(), computer, listener);
+
+        if (_options.isDirectConnection()) {
+            // The slave connected on its own channel, the launch session only carries the log
+            try {
+                Channel channel = computer.getChannel();
+
+                if (channel == null) {
+                    // Disconnected already
+                    launch.close();
+                } else {
+                    channel.addListener(new Channel.Listener() {
+                        @Override
+                        public void onClosed(Channel channel, IOException cause) {
+                            LOG.log(FINE, "Channel closed for {0}", _options.getName());
+                            launch.close();
                         }
-                    }
+                    });
                 }
+            } finally {
+                launch.releasePermit();
             }
-        });
-        logReader.setDaemon(true);
-        logReader.setName(_options.getName().replaceAll("[^a-zA-Z0-9_-]", "_") + "-log-reader");
-        logReader.start();
+
+            return;
+        }
 
         try {
-            computer.setChannel(connection.getOutput(), connection.getInput(), listener, new Channel.Listener() {
+            computer.setChannel(launch.getOutput(), launch.connection.getInput(), listener, new Channel.Listener() {
                 @Override
                 public void onClosed(Channel channel, IOException cause) {
                     LOG.log(FINE, "Channel closed for {0}", _options.getName());
-
-                    connection.close();
-
-                    try {
-                        logReader.interrupt();
-                        logReader.join(5000);
-                    } catch (Throwable ex) {
-                        LOG.log(FINER, "Error stopping log reading thread for job " + _options.getName(), ex);
-                    }
+                    launch.close();
                 }
             });
         } catch (IOException ex) {
-            connection.close();
+            launch.close();
+            releaseReservation();
             throw ex;
         } catch (Throwable ex) {
-            connection.close();
+            launch.close();
+            releaseReservation();
             throw Throwables.propagate(ex);
+        } finally {
+            // The slave has connected or failed, either way the host can start the next launch
+            launch.releasePermit();
+        }
+    }
+
+    /**
+     * Start the slave container and wait for the slave to connect.
+     * <p/>
+     * If the container can not be started, or the launch exits before the slave connects, the
+     * host is reported to the cloud as failed and the slave is launched again on the next best
+     * host, up to {@link #MAX_LAUNCH_ATTEMPTS} times. A launch that waited too long for its turn
+     * on a busy host is also moved to another host, but the host is not reported as failed. The
+     * launch stops early if no other host is available.
+     * <p/>
+     * If the cloud hedges launches and the slave has not connected within the cloud's hedge delay,
+     * a second container is started on another host. The first slave to connect is used and the
+     * other launch is torn down. If the winning launch is the hedge, the slave takes over its host
+     * slot.
+     */
+    private SlaveLaunch connect(DockerJobCloud cloud, SlaveComputer computer, TaskListener listener) throws IOException, InterruptedException {
+        CompletionService<SlaveLaunch> completion = new ExecutorCompletionService<SlaveLaunch>(SlaveLaunch.EXECUTOR);
+        List<SlaveLaunch> launches = newArrayList();
+        Set<HostAndPort> failedHosts = newHashSet();
+        Optional<Duration> hedgeDelay = cloud.getHedgeDelay();
+        // A slave that connects directly can not tell which of two containers connected
+        boolean hedgeDue = hedgeDelay.isPresent() && !_options.isDirectConnection();
+        SlaveLaunch winner = null;
+        Throwable failure = null;
+        int attempts = 0;
+
+        cloud.getLaunchStats().recordLaunch();
+
+        try {
+            while (winner == null) {
+                if (launches.isEmpty()) {
+                    if (attempts >= MAX_LAUNCH_ATTEMPTS) {
+                        throw new IOException(format("Slave did not connect after %d attempts: %s", attempts, _options.getName()), failure);
+                    }
+
+                    attempts += 1;
+
+                    try {
+                        SlaveClient.SlaveConnection connection = cloud.createSlave(_options, excludeHosts(failedHosts));
+                        launches.add(startLaunch(cloud, computer, _options, connection, completion, listener, attempts == 1 ? "" : "[attempt " + attempts + "] "));
+                    } catch (NoAvailableHostException ex) {
+                        // Every host is full, unavailable or has been tried, another attempt would fail too
+                        throw new IOException(format("No available hosts to launch slave after %d failed attempts: %s", attempts - 1, _options.getName()), failure == null ? ex : failure);
+                    } catch (LaunchPermitTimeoutException ex) {
+                        // The host is busy, not broken, so try another host without reporting a failure
+                        failure = ex;
+                        launchDeferred(_options, ex, failedHosts, listener);
+                    } catch (IOException ex) {
+                        failure = ex;
+                        launchFailed(cloud, _options, ex, failedHosts, listener);
+                    }
+
+                    continue;
+                }
+
+                Future<SlaveLaunch> done;
+
+                if (hedgeDue) {
+                    // Only the first launch is hedged
+                    hedgeDue = false;
+                    done = completion.poll(hedgeDelay.get().getMillis(), MILLISECONDS);
+
+                    if (done == null) {
+                        if (cloud.tryHedge()) {
+                            SlaveLaunch hedge = startHedge(cloud, computer, failedHosts, completion, listener);
+
+                            if (hedge != null) {
+                                LOG.log(FINE, "Hedged slave launch: job={0} delay={1} host={2}", new Object[]{_options.getName(), hedgeDelay.get(), hedge.options.getReservation()});
+                                listener.getLogger().println("Slave did not connect within " + hedgeDelay.get() + ", starting a second container on " + hedge.options.getReservation());
+                                launches.add(hedge);
+                            } else {
+                                cloud.cancelHedge();
+                            }
+                        }
+
+                        continue;
+                    }
+                } else {
+                    done = completion.take();
+                }
+
+                SlaveLaunch launch = done.get();
+
+                if (launch.getFailure() == null) {
+                    winner = launch;
+                } else {
+                    failure = launch.getFailure();
+                    launches.remove(launch);
+                    launchFailed(cloud, launch.options, failure, failedHosts, listener);
+                    launch.abort();
+                }
+            }
+
+            cloud.getLaunchStats().recordLatency(winner.getLatency());
+
+            if (winner.options != _options) {
+                // The hedged launch is still running, so its latency is at least the time so far
+                for (SlaveLaunch launch : launches) {
+                    if (launch.options == _options) {
+                        cloud.getLaunchStats().recordLatency(launch.getElapsed());
+                    }
+                }
+            }
+
+            return winner;
+        } catch (ExecutionException ex) {
+            throw new IOException("Error waiting for slave to connect: " + _options.getName(), ex.getCause());
+        } finally {
+            for (SlaveLaunch launch : launches) {
+                if (launch != winner) {
+                    launch.abort();
+                }
+            }
+
+            if (winner == null) {
+                releaseReservation();
+            } else if (winner.options != _options) {
+                _options.setReservation(winner.options.getReservation());
+                _options.setLaunchPermit(winner.options.getLaunchPermit());
+            }
+        }
+    }
+
+    /**
+     * Report the host of a failed launch to the cloud and give up its slot.
+     */
+    private static void launchFailed(DockerJobCloud cloud, SlaveOptions options, Throwable error, Set<HostAndPort> failedHosts, TaskListener listener) {
+        HostReservation reservation = options.getReservation();
+
+        listener.getLogger().println("Slave launch failed: " + error.getMessage());
+
+        if (reservation != null) {
+            failedHosts.add(reservation.getHost());
+            cloud.launchFailed(reservation.getHost(), error);
+            reservation.release();
+        }
+    }
+
+    /**
+     * Give up the slot on a host that was too busy to start the launch in time. The host is not
+     * reported to the cloud, but is not tried again for this slave.
+     */
+    private static void launchDeferred(SlaveOptions options, Throwable error, Set<HostAndPort> failedHosts, TaskListener listener) {
+        HostReservation reservation = options.getReservation();
+
+        listener.getLogger().println("Slave launch delayed: " + error.getMessage());
+
+        if (reservation != null) {
+            failedHosts.add(reservation.getHost());
+            reservation.release();
+        }
+    }
+
+    /**
+     * Start a second container for the slave on a host that has not been tried yet.
+     *
+     * @return launch or null if no other host can start the container immediately
+     */
+    private SlaveLaunch startHedge(DockerJobCloud cloud, SlaveComputer computer, Set<HostAndPort> failedHosts, CompletionService<SlaveLaunch> completion, TaskListener listener) {
+        HostReservation primary = _options.getReservation();
+        Set<HostAndPort> excludedHosts = newHashSet(failedHosts);
+        SlaveOptions options = new SlaveOptions(_options);
+
+        if (primary != null) {
+            excludedHosts.add(primary.getHost());
+        }
+
+        try {
+            SlaveClient.SlaveConnection connection = cloud.createHedgeSlave(options, excludedHosts);
+            return startLaunch(cloud, computer, options, connection, completion, listener, "[hedge] ");
+        } catch (Exception ex) {
+            LOG.log(FINE, "Unable to hedge slave launch: job={0} error={1}", new Object[]{_options.getName(), ex});
+
+            if (options.getReservation() != null) {
+                options.getReservation().release();
+            }
+
+            return null;
+        }
+    }
+
+    private static Predicate<HostState> excludeHosts(final Set<HostAndPort> hosts) {
+        return new Predicate<HostState>() {
+            public boolean apply(HostState input) {
+                return !hosts.contains(input.host);
+            }
+        };
+    }
+
+    private static SlaveLaunch startLaunch(DockerJobCloud cloud, SlaveComputer computer, SlaveOptions options, SlaveClient.SlaveConnection connection,
+                                           CompletionService<SlaveLaunch> completion, TaskListener listener, String logPrefix) {
+        SlaveLaunch launch = new SlaveLaunch(options, connection);
+        launch.startLogReader(listener, cloud.getLaunchStats(), logPrefix);
+
+        if (options.isDirectConnection()) {
+            launch.watchDirect(completion, computer);
+        } else {
+            launch.watch(completion);
+        }
+
+        return launch;
+    }
+
+    /**
+     * Give up the host slot after a failed launch. A later launch of the same slave reserves a
+     * new slot.
+     */
+    private void releaseReservation() {
+        HostReservation reservation = _options.getReservation();
+
+        if (reservation != null) {
+            reservation.release();
         }
     }
 
@@ -0,0 +1,57 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+import jenkins.model.Jenkins;
+
+import java.util.logging.Logger;
+
+import static com.github.dump247.jenkins.plugins.dockerjob.util.JenkinsUtils.getClouds;
+import static com.github.dump247.jenkins.plugins.dockerjob.util.JenkinsUtils.getNodes;
+import static java.util.logging.Level.FINE;
+
+/**
+ * Periodically refreshes the host inventory of each {@link DockerJobCloud}.
+ * <p/>
+ * Each cloud refreshes on its own background thread, so a slow host provider or unresponsive
+ * hosts in one cloud do not delay the other clouds or the Jenkins queue. This also reconciles the
+ * slave count and host reservations of each cloud with the Jenkins node list, resizes the warm
+ * slave pools and logs the launch statistics.
+ */
+@Extension
+public class DockerJobHostRefresher extends PeriodicWork {
+    private static final Logger LOG = Logger.getLogger(DockerJobHostRefresher.class.getName());
+
+    @Override
+    public long getRecurrencePeriod() {
+        return HostInventory.REFRESH_INTERVAL.getMillis();
+    }
+
+    @Override
+    protected void doRun() throws Exception {
+        Jenkins jenkins = Jenkins.getInstance();
+
+        if (jenkins == null) {
+            return;
+        }
+
+        ListMultimap<String, DockerJobSlave> slaves = ArrayListMultimap.create();
+
+        for (DockerJobSlave slave : getNodes(jenkins, DockerJobSlave.class)) {
+            slaves.put(slave.getLauncher().getCloudName(), slave);
+        }
+
+        for (DockerJobCloud cloud : getClouds(jenkins, DockerJobCloud.class)) {
+            cloud.reconcileSlaves(slaves.get(cloud.getDisplayName()));
+            cloud.refreshHosts();
+            cloud.refillWarmPool();
+            LOG.log(FINE, "Launch stats: cloud={0} {1}", new Object[]{cloud.getDisplayName(), cloud.getLaunchStats()});
+            LOG.log(FINE, "Launch queue: cloud={0} waiting={1}", new Object[]{cloud.getDisplayName(), cloud.getLaunchQueueDepth()});
+            LOG.log(FINE, "Admission queue: cloud={0} waiting={1}", new Object[]{cloud.getDisplayName(), cloud.getAdmissionQueueDepth()});
+        }
+
+        LOG.log(FINE, "Provisioning queue: waiting={0}", ProvisioningPipeline.getQueueDepth());
+    }
+}
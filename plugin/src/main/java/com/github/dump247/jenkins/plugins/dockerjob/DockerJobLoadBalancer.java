@@ -2,17 +2,17 @@ package com.github.dump247.jenkins.plugins.dockerjob;
 
 import hudson.model.AbstractProject;
 import hudson.model.LoadBalancer;
+import hudson.model.Node;
 import hudson.model.Queue;
 import hudson.model.queue.MappingWorksheet;
 import jenkins.model.Jenkins;
 
+import java.util.IdentityHashMap;
+import java.util.Map;
 import java.util.logging.Logger;
 
-import static com.github.dump247.jenkins.plugins.dockerjob.util.JenkinsUtils.getClouds;
-import static com.github.dump247.jenkins.plugins.dockerjob.util.JenkinsUtils.getNodes;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.lang.String.format;
-import static java.util.logging.Level.FINE;
 import static java.util.logging.Level.FINER;
 import static java.util.logging.Level.WARNING;
 
@@ -20,9 +20,12 @@ import static java.util.logging.Level.WARNING;
  * Creates docker containers on demand for Jenkins jobs.
  * <p/>
  * The {@link #map} method is polled at regular intervals by Jenkins until it maps the job to a
- * slave. If the job is managed by this plugin, this load balancer will launch a container for the
- * specific job and will only map the job to that specific container. If the job is not managed by
- * this container, it will fallback to the default load balancer implementation.
+ * slave. If the job is managed by this plugin, this load balancer will only map the job to the
+ * container launched for that specific job. If the job is not managed by this container, it will
+ * fallback to the default load balancer implementation.
+ * <p/>
+ * Containers are launched by {@link ProvisioningPipeline}, so mapping a job only looks up its
+ * slave and does not wait for the slave to be provisioned.
  * <p/>
  * This load balancer is injected into the Jenkins system in {@link DockerJobPlugin}.
  */
@@ -61,43 +64,19 @@ public class DockerJobLoadBalancer extends LoadBalancer {
 
     public MappingWorksheet.Mapping map(AbstractProject task, MappingWorksheet worksheet) {
         MappingWorksheet.Mapping mapping = worksheet.new Mapping();
+        Map<Node, MappingWorksheet.ExecutorChunk> executors = null;
         int mappedCount = 0;
 
         for (int workIndex = 0; workIndex < worksheet.works.size(); workIndex++) {
             MappingWorksheet.WorkChunk workChunk = worksheet.works(workIndex);
 
-            String jobName = workChunk.index == 0
-                    ? task.getFullDisplayName()
-                    : format("%s_%d", task.getFullDisplayName(), workChunk.index);
-
+            String jobName = getJobName(task, workChunk.index);
             DockerJobSlave taskSlave = findSlave(jobName);
 
-            if (taskSlave == null) {
-                boolean supported = false;
-                boolean mapped = false;
-
-                for (DockerJobCloud cloud : getClouds(_jenkins, DockerJobCloud.class)) {
-                    try {
-                        DockerJobCloud.ProvisionResult result = cloud.provisionJob(jobName, task, workChunk);
-
-                        if (result == DockerJobCloud.ProvisionResult.SUCCESS) {
-                            LOG.log(FINE, "Successfully provisioned job: name={0} index={1} cloud={2}", new Object[]{task.getFullDisplayName(), workIndex, cloud.getDisplayName()});
-                            mapped = true;
-                            break;
-                        } else if (result == DockerJobCloud.ProvisionResult.NO_CAPACITY) {
-                            LOG.log(FINE, "Cloud capacity is exceeded: name={0} index={1} cloud={2}", new Object[]{task.getFullDisplayName(), workIndex, cloud.getDisplayName()});
-                            supported = true;
-                        }
-                    } catch (Exception ex) {
-                        LOG.log(WARNING, format("Failed to launch task: name=%s index=%d cloud=%s", task.getFullDisplayName(), workIndex, cloud.getDisplayName()), ex);
-                    }
-                }
-
-                if (mapped) {
-                    taskSlave = findSlave(jobName);
-                } else if (supported) {
-                    mappedCount += 1;
-                }
+            if (taskSlave == null && ProvisioningPipeline.isSupported(_jenkins, workChunk.assignedLabel)) {
+                // Provisioning happens in the background. The job is mapped once the slave exists.
+                ProvisioningPipeline.submit(_jenkins, jobName, task, workChunk.assignedLabel);
+                mappedCount += 1;
             }
 
             LOG.log(FINER, "Slave: {0}", taskSlave);
@@ -105,7 +84,11 @@ public class DockerJobLoadBalancer extends LoadBalancer {
             if (taskSlave != null) {
                 mappedCount += 1;
 
-                MappingWorksheet.ExecutorChunk executor = findExecutor(worksheet, taskSlave);
+                if (executors == null) {
+                    executors = indexExecutors(worksheet);
+                }
+
+                MappingWorksheet.ExecutorChunk executor = executors.get(taskSlave);
 
                 if (executor != null) {
                     mapping.assign(workIndex, executor);
@@ -136,29 +119,41 @@ public class DockerJobLoadBalancer extends LoadBalancer {
         }
 
         for (int i = 0; i < mapping.size(); i++) {
-            ((DockerJobSlave) mapping.assigned(i).node).isMapped = true;
+            DockerJobSlave slave = (DockerJobSlave) mapping.assigned(i).node;
+            slave.isMapped = true;
+            UnmappedSlaveIndex.remove(slave);
         }
 
         return mapping;
     }
 
-    private DockerJobSlave findSlave(String jobName) {
-        for (DockerJobSlave slave : getNodes(_jenkins, DockerJobSlave.class)) {
-            if (!slave.isMapped && slave.jobName.equals(jobName)) {
-                return slave;
-            }
-        }
+    /**
+     * Name of the slave's job for a work chunk. Work chunks after the first have the chunk index
+     * appended to the job name.
+     */
+    static String getJobName(AbstractProject task, int workChunkIndex) {
+        return workChunkIndex == 0
+                ? task.getFullDisplayName()
+                : format("%s_%d", task.getFullDisplayName(), workChunkIndex);
+    }
 
-        return null;
+    private DockerJobSlave findSlave(String jobName) {
+        return UnmappedSlaveIndex.find(_jenkins, jobName);
     }
 
-    private MappingWorksheet.ExecutorChunk findExecutor(MappingWorksheet worksheet, DockerJobSlave slave) {
+    /**
+     * Index the worksheet executors by node. If a node has multiple executor chunks, the first
+     * is used.
+     */
+    private static Map<Node, MappingWorksheet.ExecutorChunk> indexExecutors(MappingWorksheet worksheet) {
+        Map<Node, MappingWorksheet.ExecutorChunk> index = new IdentityHashMap<Node, MappingWorksheet.ExecutorChunk>(worksheet.executors.size());
+
         for (MappingWorksheet.ExecutorChunk executor : worksheet.executors) {
-            if (executor.node == slave) {
-                return executor;
+            if (!index.containsKey(executor.node)) {
+                index.put(executor.node, executor);
             }
         }
 
-        return null;
+        return index;
     }
 }
@@ -0,0 +1,62 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import hudson.Extension;
+import hudson.model.AbstractProject;
+import hudson.model.Label;
+import hudson.model.Queue;
+import hudson.model.queue.QueueListener;
+import jenkins.model.Jenkins;
+
+import static com.github.dump247.jenkins.plugins.dockerjob.util.JenkinsUtils.getClouds;
+
+/**
+ * Starts provisioning a slave as soon as a docker job becomes buildable, so the slave is usually
+ * starting by the time {@link DockerJobLoadBalancer} is asked to map the job.
+ * <p/>
+ * Only the first work chunk of a job is submitted here. Other work chunks are submitted by the
+ * load balancer.
+ * <p/>
+ * When the last queued build of a job leaves the queue, because it started, possibly on a slave
+ * of another cloud, or was cancelled, the job stops waiting for admission in every cloud.
+ */
+@Extension
+public class DockerJobQueueListener extends QueueListener {
+    @Override
+    public void onEnterBuildable(Queue.BuildableItem item) {
+        if (!(item.task instanceof AbstractProject)) {
+            return;
+        }
+
+        Jenkins jenkins = Jenkins.getInstance();
+
+        if (jenkins == null) {
+            return;
+        }
+
+        AbstractProject job = (AbstractProject) item.task;
+        Label label = item.getAssignedLabel();
+
+        if (ProvisioningPipeline.isSupported(jenkins, label)) {
+            ProvisioningPipeline.submit(jenkins, DockerJobLoadBalancer.getJobName(job, 0), job, label);
+        }
+    }
+
+    @Override
+    public void onLeft(Queue.LeftItem item) {
+        if (!(item.task instanceof AbstractProject)) {
+            return;
+        }
+
+        Jenkins jenkins = Jenkins.getInstance();
+
+        if (jenkins == null || !jenkins.getQueue().getItems(item.task).isEmpty()) {
+            return;
+        }
+
+        String jobFullName = ((AbstractProject) item.task).getFullName();
+
+        for (DockerJobCloud cloud : getClouds(jenkins, DockerJobCloud.class)) {
+            cloud.cancelAdmission(jobFullName);
+        }
+    }
+}
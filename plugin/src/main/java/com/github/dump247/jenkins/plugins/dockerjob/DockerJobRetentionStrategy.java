@@ -14,13 +14,18 @@ import org.kohsuke.stapler.DataBoundConstructor;
 public class DockerJobRetentionStrategy extends RetentionStrategy<DockerJobComputer> {
     private static final Duration JOB_ACCEPT_TIMEOUT = Duration.standardSeconds(30);
 
+    /**
+     * Maximum time a slave may spend launching, including waiting for other launches on its host.
+     */
+    private static final Duration LAUNCH_TIMEOUT = Duration.standardMinutes(10);
+
     @DataBoundConstructor
     public DockerJobRetentionStrategy() {
     }
 
     @Override
     public long check(DockerJobComputer computer) {
-        if (computer.hasCompletedJob(JOB_ACCEPT_TIMEOUT)) {
+        if (computer.hasCompletedJob(LAUNCH_TIMEOUT, JOB_ACCEPT_TIMEOUT)) {
             computer.terminate();
         }
 
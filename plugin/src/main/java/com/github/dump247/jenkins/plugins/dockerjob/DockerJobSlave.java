@@ -1,6 +1,8 @@
 package com.github.dump247.jenkins.plugins.dockerjob;
 
+import com.github.dump247.jenkins.plugins.dockerjob.util.JenkinsUtils;
 import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
 import hudson.model.Computer;
 import hudson.model.Descriptor;
@@ -28,7 +30,26 @@ public class DockerJobSlave extends Slave implements EphemeralNode {
     private static final Joiner LABEL_JOINER = Joiner.on(' ');
 
     public boolean isMapped;
-    public final String jobName;
+
+    /**
+     * True if the slave was started ahead of demand and has not been given to a job yet. See
+     * {@link WarmPool}.
+     */
+    public volatile boolean isWarm;
+
+    /**
+     * Labeled image a warm slave was started for, or null if the slave is not warm.
+     */
+    public transient volatile JobValidator.JobValidationResult warmImage;
+
+    /**
+     * Name of the job the slave runs. For a warm slave, this is a placeholder until the slave is
+     * claimed by a job.
+     */
+    public volatile String jobName;
+
+    private transient boolean _removed;
+    private transient AdmissionController.Admission _admission;
 
     public DockerJobSlave(@Nonnull String nodeName, String nodeDescription, String jobName, String remoteFS, Set<LabelAtom> labels, DockerJobComputerLauncher launcher) throws Descriptor.FormException, IOException {
         super(nodeName,
@@ -59,6 +80,32 @@ public class DockerJobSlave extends Slave implements EphemeralNode {
         return (DockerJobComputerLauncher) super.getLauncher();
     }
 
+    /**
+     * Admission of the slave's job by the cloud, or null if the slave has no job yet.
+     */
+    public AdmissionController.Admission getAdmission() {
+        return _admission;
+    }
+
+    public void setAdmission(AdmissionController.Admission admission) {
+        _admission = admission;
+    }
+
+    /**
+     * Give a warm slave to a job.
+     */
+    public void claim(String jobName) {
+        this.jobName = jobName;
+        this.isWarm = false;
+        this.warmImage = null;
+
+        Computer computer = toComputer();
+
+        if (computer instanceof DockerJobComputer) {
+            ((DockerJobComputer) computer).claimed();
+        }
+    }
+
     public void terminate() throws IOException, InterruptedException {
         try {
             VirtualChannel channel = getChannel();
@@ -72,6 +119,30 @@ public class DockerJobSlave extends Slave implements EphemeralNode {
             } catch (IOException ex) {
                 LOG.log(Level.WARNING, format("Failed to remove jenkins node: name=%s", this.name), ex);
             }
+
+            removed();
+        }
+    }
+
+    /**
+     * Notify the owning cloud that this slave has been removed, either by {@link #terminate} or
+     * by deleting the node from Jenkins. Only the first call has an effect.
+     */
+    void removed() {
+        synchronized (this) {
+            if (_removed) {
+                return;
+            }
+
+            _removed = true;
+        }
+
+        UnmappedSlaveIndex.remove(this);
+
+        Optional<DockerJobCloud> cloud = JenkinsUtils.getCloud(Jenkins.getInstance(), DockerJobCloud.class, getLauncher().getCloudName());
+
+        if (cloud.isPresent()) {
+            cloud.get().slaveRemoved(this);
         }
     }
 }
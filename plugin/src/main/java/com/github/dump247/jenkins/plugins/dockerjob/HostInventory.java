@@ -0,0 +1,589 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.FileUploader;
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.HostFiles;
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.HostTimeoutException;
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.SlaveClient;
+import com.google.common.base.Throwables;
+import com.google.common.collect.FluentIterable;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.net.HostAndPort;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Provider;
+import jenkins.model.Jenkins;
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Strings.nullToEmpty;
+import static com.google.common.collect.Maps.newHashMap;
+import static com.google.common.collect.Maps.newLinkedHashMap;
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Tracks the hosts available to a {@link DockerJobCloud}.
+ * <p/>
+ * The host list is refreshed in the background (see {@link DockerJobHostRefresher}) and published
+ * as an immutable {@link Snapshot}. Readers only ever see the last published snapshot, so
+ * provisioning never waits on the host provider or on SSH connections to the hosts.
+ */
+public class HostInventory {
+    public static final Duration REFRESH_INTERVAL = Duration.standardSeconds(30);
+
+    /**
+     * Maximum time a refresh waits for host probes before publishing the results it has. Hosts
+     * that have not responded keep their previous state until the probe completes.
+     */
+    public static final Duration REFRESH_DEADLINE = Duration.standardSeconds(20);
+
+    /**
+     * Maximum time a single host probe (connect, authenticate, upload and initialize) is allowed
+     * to run before it is aborted and the host is marked as failed.
+     */
+    public static final Duration HOST_PROBE_TIMEOUT = Duration.standardMinutes(2);
+
+    /**
+     * Default maximum number of hosts in a cloud that are connected or pinged in parallel.
+     */
+    public static final int DEFAULT_MAX_THREADS = 32;
+
+    private static final Logger LOG = Logger.getLogger(HostInventory.class.getName());
+    private static final Duration THREAD_KEEP_ALIVE = Duration.standardMinutes(1);
+
+    /**
+     * Runs the refresh for each cloud. This is separate from the probe executor so a refresh
+     * waiting on host futures can never occupy a thread that the host futures need to run.
+     */
+    private static final ExecutorService REFRESH_EXECUTOR = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder()
+                    .setNameFormat("docker-job-refresh-%d")
+                    .setDaemon(true)
+                    .build());
+
+    private final String _cloudName;
+    private final Jenkins _jenkins;
+    private final DockerHostProvider _hostProvider;
+    private final int _sshPort;
+    private final Provider<StandardUsernameCredentials> _credentialsProvider;
+    private final String _slaveInitScript;
+    private final boolean _useLaunchDaemon;
+    private final int _maxThreads;
+    private final FileUploader _uploader;
+
+    /**
+     * Connects to and pings the hosts in this cloud. Each cloud has its own pool so slow hosts in
+     * one cloud can not starve another. The pool is resized to the number of hosts on each
+     * refresh, up to {@link #_maxThreads}, and idle threads exit.
+     */
+    private final ThreadPoolExecutor _probeThreads;
+    private final ListeningExecutorService _probeExecutor;
+
+    private final AtomicBoolean _refreshing = new AtomicBoolean();
+    private HostFiles _hostFiles;
+    private final ConcurrentMap<HostAndPort, HostProbe> _probes = new ConcurrentHashMap<HostAndPort, HostProbe>();
+
+    /**
+     * Most recent launch failure of each host. A probe that started before the failure reports a
+     * state that does not include it, so the failure is applied again to the probe result.
+     */
+    private final Map<HostAndPort, LaunchFailure> _launchFailures = newHashMap();
+
+    /**
+     * Hosts listed by the refresh that is running, which are not in the snapshot until the refresh
+     * publishes it. Empty when no refresh is running.
+     */
+    private Set<HostAndPort> _refreshHosts = ImmutableSet.of();
+    private volatile Snapshot _snapshot = Snapshot.EMPTY;
+
+    public HostInventory(String cloudName, Jenkins jenkins, DockerHostProvider hostProvider, int sshPort,
+                         Provider<StandardUsernameCredentials> credentialsProvider, String slaveInitScript,
+                         boolean useLaunchDaemon, int maxThreads, FileUploader uploader) {
+        checkArgument(maxThreads > 0);
+
+        _cloudName = checkNotNull(cloudName);
+        _jenkins = checkNotNull(jenkins);
+        _hostProvider = checkNotNull(hostProvider);
+        _sshPort = sshPort;
+        _credentialsProvider = checkNotNull(credentialsProvider);
+        _slaveInitScript = nullToEmpty(slaveInitScript);
+        _useLaunchDaemon = useLaunchDaemon;
+        _maxThreads = maxThreads;
+        _uploader = checkNotNull(uploader);
+
+        _probeThreads = new ThreadPoolExecutor(
+                1, 1,
+                THREAD_KEEP_ALIVE.getMillis(), TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("docker-job-" + cloudName.replaceAll("[^a-zA-Z0-9_-]", "_") + "-%d")
+                        .setDaemon(true)
+                        .build());
+        _probeThreads.allowCoreThreadTimeOut(true);
+        _probeExecutor = MoreExecutors.listeningDecorator(_probeThreads);
+    }
+
+    /**
+     * Number of host connections and pings waiting for a thread.
+     */
+    public int getProbeQueueDepth() {
+        return _probeThreads.getQueue().size();
+    }
+
+    /**
+     * Number of host connections and pings currently running.
+     */
+    public int getActiveProbeCount() {
+        return _probeThreads.getActiveCount();
+    }
+
+    /**
+     * Size the probe pool to probe all hosts at once, up to the configured maximum.
+     */
+    private void resizeProbeThreads(int hostCount) {
+        int size = Math.max(1, Math.min(hostCount, _maxThreads));
+
+        // The core size can not exceed the maximum size, so the order of the updates matters
+        if (size > _probeThreads.getMaximumPoolSize()) {
+            _probeThreads.setMaximumPoolSize(size);
+            _probeThreads.setCorePoolSize(size);
+        } else {
+            _probeThreads.setCorePoolSize(size);
+            _probeThreads.setMaximumPoolSize(size);
+        }
+    }
+
+    /**
+     * Get the most recently published host snapshot.
+     * <p/>
+     * This never blocks. If the inventory has not been refreshed yet, a refresh is scheduled in
+     * the background and the empty snapshot is returned.
+     */
+    public Snapshot getSnapshot() {
+        Snapshot snapshot = _snapshot;
+
+        if (snapshot == Snapshot.EMPTY) {
+            scheduleRefresh();
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * Start a background refresh of the host list, unless one is already in progress.
+     */
+    public void scheduleRefresh() {
+        if (_refreshing.compareAndSet(false, true)) {
+            REFRESH_EXECUTOR.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        refresh();
+                    } finally {
+                        _refreshing.set(false);
+                    }
+                }
+            });
+        }
+    }
+
+    private void refresh() {
+        LOG.log(FINE, "Refreshing hosts for cloud {0}", _cloudName);
+
+        try {
+            Collection<HostAndPort> hosts = _hostProvider.listHosts();
+            Map<HostAndPort, HostState> currentHosts = _snapshot.hosts;
+            Map<HostAndPort, HostProbe> probes = newLinkedHashMap();
+            Map<HostAndPort, HostState> skipped = newLinkedHashMap();
+            Instant now = Instant.now();
+            Instant deadline = now.plus(REFRESH_DEADLINE);
+
+            resizeProbeThreads(hosts.size());
+            setRefreshHosts(hosts);
+
+            for (HostAndPort host : hosts) {
+                HostAndPort targetHost = host.withDefaultPort(_sshPort);
+
+                if (probes.containsKey(targetHost) || skipped.containsKey(targetHost)) {
+                    continue;
+                }
+
+                HostState currentState = currentHosts.get(targetHost);
+
+                if (currentState == null || _probes.containsKey(targetHost) || currentState.isProbeDue(now)) {
+                    probes.put(targetHost, getOrStartProbe(targetHost));
+                } else {
+                    // Host is backing off after a failure, so do not contact it yet
+                    skipped.put(targetHost, currentState);
+                }
+            }
+
+            for (HostProbe probe : probes.values()) {
+                try {
+                    probe.future.get(Math.max(0, deadline.getMillis() - Instant.now().getMillis()), TimeUnit.MILLISECONDS);
+                } catch (TimeoutException ex) {
+                    LOG.log(FINE, "Host probe missed refresh deadline: host={0} elapsed={1}ms", new Object[]{probe.host, probe.elapsed().getMillis()});
+                } catch (ExecutionException ex) {
+                    // Not possible, probes do not throw
+                    throw Throwables.propagate(ex);
+                }
+            }
+
+            LOG.log(FINE, "Host probes started: cloud={0} hosts={1} probes={2} threads={3} queued={4}",
+                    new Object[]{_cloudName, hosts.size(), probes.size(), _probeThreads.getPoolSize(), getProbeQueueDepth()});
+
+            publish(hosts, probes, skipped);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable ex) {
+            LOG.log(WARNING, "Error listing cloud hosts", ex);
+            _snapshot = new Snapshot(ImmutableMap.<HostAndPort, HostState>of(), ex);
+        } finally {
+            setRefreshHosts(ImmutableSet.<HostAndPort>of());
+        }
+    }
+
+    /**
+     * Record the hosts of the refresh that is starting, or none once it has finished.
+     */
+    private synchronized void setRefreshHosts(Collection<HostAndPort> hosts) {
+        ImmutableSet.Builder<HostAndPort> refreshHosts = ImmutableSet.builder();
+
+        for (HostAndPort host : hosts) {
+            refreshHosts.add(host.withDefaultPort(_sshPort));
+        }
+
+        _refreshHosts = refreshHosts.build();
+    }
+
+    /**
+     * Get the in-progress probe for a host or start a new one.
+     * <p/>
+     * A probe that is still running from a previous refresh is reused rather than starting another
+     * connection to the same host, unless it has exceeded {@link #HOST_PROBE_TIMEOUT}. In that case
+     * the probe is aborted and reports the host as failed.
+     */
+    private HostProbe getOrStartProbe(HostAndPort host) {
+        HostProbe probe = _probes.get(host);
+
+        if (probe != null) {
+            if (probe.elapsed().isLongerThan(HOST_PROBE_TIMEOUT)) {
+                LOG.log(WARNING, "Aborting host probe: host={0} elapsed={1}ms", new Object[]{host, probe.elapsed().getMillis()});
+                probe.abort();
+            }
+
+            return probe;
+        }
+
+        HostState currentState = _snapshot.hosts.get(host);
+        probe = new HostProbe(host, currentState == null ? HostState.probing(host) : currentState);
+        _probes.put(host, probe);
+        probe.start();
+        return probe;
+    }
+
+    /**
+     * Publish a new snapshot containing the given hosts.
+     * <p/>
+     * Hosts with a completed probe use the probe result. Hosts with a probe still in progress keep
+     * their previous state, or are reported as {@link HostStatus#PROBING} if they are new. Hosts
+     * that are no longer listed by the provider are kept as {@link HostStatus#DRAINING} until
+     * their running slaves complete.
+     */
+    private synchronized void publish(Collection<HostAndPort> hosts, Map<HostAndPort, HostProbe> probes, Map<HostAndPort, HostState> skipped) {
+        Map<HostAndPort, HostState> currentHosts = _snapshot.hosts;
+        Map<HostAndPort, HostState> newHosts = newLinkedHashMap();
+
+        for (HostAndPort host : hosts) {
+            HostAndPort targetHost = host.withDefaultPort(_sshPort);
+            HostProbe probe = probes.get(targetHost);
+            HostState state;
+
+            if (probe == null) {
+                state = skipped.get(targetHost);
+            } else if (probe.future.isDone()) {
+                state = applyLaunchFailure(Futures.getUnchecked(probe.future), probe.startTime);
+            } else {
+                state = currentHosts.get(targetHost);
+
+                if (state == null) {
+                    state = HostState.probing(targetHost);
+                }
+            }
+
+            newHosts.put(targetHost, state);
+        }
+
+        for (HostState state : currentHosts.values()) {
+            if (!newHosts.containsKey(state.host) && state.client != null) {
+                if (state.client.sessionCount() > 0) {
+                    LOG.log(FINE, "Draining removed host: host={0} sessions={1}", new Object[]{state.host, state.client.sessionCount()});
+                    newHosts.put(state.host, state.draining());
+                } else {
+                    LOG.log(FINE, "Disconnecting removed host: host={0}", state.host);
+                    state.client.close();
+                }
+            }
+        }
+
+        _launchFailures.keySet().retainAll(newHosts.keySet());
+        _refreshHosts = ImmutableSet.of();
+        _snapshot = new Snapshot(newHosts, null);
+    }
+
+    /**
+     * Publish the result of a probe that completed after its refresh deadline.
+     * <p/>
+     * This is called for every probe. A probe of a host that is new in the running refresh may
+     * complete before the refresh publishes the host, in which case the refresh publishes the
+     * result.
+     */
+    private synchronized void publishLate(HostState state, Instant probeStartTime) {
+        Map<HostAndPort, HostState> currentHosts = _snapshot.hosts;
+
+        if (currentHosts.containsKey(state.host)) {
+            Map<HostAndPort, HostState> newHosts = newLinkedHashMap(currentHosts);
+            newHosts.put(state.host, applyLaunchFailure(state, probeStartTime));
+            _snapshot = new Snapshot(newHosts, _snapshot.error);
+        } else if (state.client != null && !_refreshHosts.contains(state.host)) {
+            // Host was removed while the probe was running
+            state.client.close();
+        }
+    }
+
+    /**
+     * Record that a slave failed to launch on a host. The host is ranked below healthy hosts until
+     * it recovers.
+     */
+    public synchronized void recordLaunchFailure(HostAndPort host, Throwable error) {
+        Map<HostAndPort, HostState> currentHosts = _snapshot.hosts;
+        HostState state = currentHosts.get(host);
+
+        if (state != null) {
+            LaunchFailure previous = _launchFailures.get(host);
+            LaunchFailure failure = new LaunchFailure(error, Instant.now(), previous == null ? 1 : previous.count + 1);
+            _launchFailures.put(host, failure);
+
+            LOG.log(FINE, "Host launch failure recorded: host={0} failures={1}", new Object[]{host, failure.count});
+
+            Map<HostAndPort, HostState> newHosts = newLinkedHashMap(currentHosts);
+            newHosts.put(host, state.launchFailed(error, failure.time));
+            _snapshot = new Snapshot(newHosts, _snapshot.error);
+        }
+    }
+
+    /**
+     * Apply the most recent launch failure of the host to the result of a probe, if the failure
+     * happened after the probe started and is not already part of the result.
+     */
+    private HostState applyLaunchFailure(HostState state, Instant probeStartTime) {
+        LaunchFailure failure = _launchFailures.get(state.host);
+
+        if (failure == null || state.client == null || !failure.time.isAfter(probeStartTime)) {
+            return state;
+        }
+
+        if (state.lastFailureTime != null && !failure.time.isAfter(state.lastFailureTime)) {
+            return state;
+        }
+
+        return state.launchFailed(failure.error, failure.time);
+    }
+
+    private HostState initializeHost(HostProbe probe) {
+        SlaveClient client = null;
+
+        try {
+            client = new SlaveClient(probe.host, _credentialsProvider);
+            probe.client = client;
+
+            String description = client.initialize(getHostFiles(), _uploader, _useLaunchDaemon);
+            Set<String> images = client.listImages();
+            return probe.currentState.succeeded(description, client, probe.elapsed(), images);
+        } catch (Exception ex) {
+            if (client != null) {
+                client.close();
+            }
+
+            return probe.currentState.failed(ex, probe.elapsed());
+        }
+    }
+
+    /**
+     * Files to install on each host. These are loaded and hashed once and shared by all hosts.
+     */
+    private synchronized HostFiles getHostFiles() throws IOException {
+        if (_hostFiles == null) {
+            _hostFiles = HostFiles.create(_jenkins.getJnlpJars("slave.jar").getURL(), _slaveInitScript);
+        }
+
+        return _hostFiles;
+    }
+
+    private HostState pingHost(HostProbe probe) {
+        HostState currentState = probe.currentState;
+
+        try {
+            probe.client = currentState.client;
+            Set<String> images = currentState.client.listImages();
+            return currentState.succeeded(currentState.message, currentState.client, probe.elapsed(), images);
+        } catch (HostTimeoutException ex) {
+            // The host is connected but slow. Keep the connection, so running slaves are not
+            // disconnected, and the previous images. The probe latency makes the host degraded.
+            LOG.log(WARNING, "Host ping timed out: host={0} error={1}", new Object[]{probe.host, ex.getMessage()});
+            return currentState.succeeded(currentState.message, currentState.client, probe.elapsed(), currentState.images);
+        } catch (Exception ex) {
+            currentState.client.close();
+            return currentState.failed(ex, probe.elapsed());
+        }
+    }
+
+    /**
+     * Connection attempt or ping of a single host.
+     */
+    private final class HostProbe implements Callable<HostState> {
+        private final HostAndPort host;
+        private final HostState currentState;
+        private final long startNanos = System.nanoTime();
+        private final Instant startTime = Instant.now();
+        private volatile SlaveClient client;
+        private ListenableFuture<HostState> future;
+
+        public HostProbe(HostAndPort host, HostState currentState) {
+            this.host = host;
+            this.currentState = currentState;
+        }
+
+        public void start() {
+            future = _probeExecutor.submit(this);
+            future.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    _probes.remove(host, HostProbe.this);
+                    HostState state = Futures.getUnchecked(future);
+
+                    LOG.log(FINE, "Host probe complete: host={0} status={1} latency={2}ms", new Object[]{host, state.status, state.probeLatency.getMillis()});
+
+                    if (state.consecutiveFailures > 0) {
+                        LOG.log(WARNING, "Error connecting to cloud host: host={0} status={1} failures={2} retry={3} error={4}",
+                                new Object[]{host, state.status, state.consecutiveFailures, state.nextProbeTime, state.message});
+                    }
+
+                    publishLate(state, startTime);
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+
+        @Override
+        public HostState call() {
+            if (currentState.client == null) {
+                return initializeHost(this);
+            } else {
+                return pingHost(this);
+            }
+        }
+
+        public Duration elapsed() {
+            return Duration.millis(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        }
+
+        /**
+         * Close the connection to the host, which causes the probe to fail.
+         */
+        public void abort() {
+            SlaveClient probeClient = client;
+
+            if (probeClient != null) {
+                probeClient.close();
+            }
+        }
+    }
+
+    private static final class LaunchFailure {
+        private final Throwable error;
+        private final Instant time;
+
+        /**
+         * Number of launch failures on the host since it was added to the inventory.
+         */
+        private final int count;
+
+        public LaunchFailure(Throwable error, Instant time, int count) {
+            this.error = error;
+            this.time = time;
+            this.count = count;
+        }
+    }
+
+    /**
+     * Immutable set of hosts published by a single inventory refresh.
+     */
+    public static final class Snapshot {
+        private static final Snapshot EMPTY = new Snapshot(ImmutableMap.<HostAndPort, HostState>of(), null);
+
+        private final ImmutableMap<HostAndPort, HostState> hosts;
+        private final Throwable error;
+        private final Instant refreshTime;
+        private final int availableHostCount;
+
+        private Snapshot(Map<HostAndPort, HostState> hosts, Throwable error) {
+            this.hosts = ImmutableMap.copyOf(hosts);
+            this.error = error;
+            this.refreshTime = Instant.now();
+            this.availableHostCount = FluentIterable.from(hosts.values()).filter(HostState.AVAILABLE_HOSTS).size();
+        }
+
+        public Collection<HostState> getHosts() {
+            return hosts.values();
+        }
+
+        /**
+         * State of a host, or null if the host is not in the inventory.
+         */
+        public HostState getHost(HostAndPort host) {
+            return hosts.get(host);
+        }
+
+        /**
+         * Error returned by the host provider during the refresh, or null if the refresh succeeded.
+         */
+        public Throwable getError() {
+            return error;
+        }
+
+        /**
+         * Number of hosts that new slaves can be placed on.
+         */
+        public int getAvailableHostCount() {
+            return availableHostCount;
+        }
+
+        public Instant getRefreshTime() {
+            return refreshTime;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.google.common.net.HostAndPort;
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Snapshot of an available host, as seen by a {@link HostSelectionStrategy} when placing a slave.
+ */
+public class HostMetrics {
+    public final HostAndPort host;
+    public final HostStatus status;
+
+    /**
+     * Maximum number of slaves the host can run.
+     */
+    public final int capacity;
+
+    /**
+     * Number of slaves currently running on the host.
+     */
+    public final int activeSlaves;
+
+    /**
+     * Time taken by the most recent connection attempt or ping of the host.
+     */
+    public final Duration probeLatency;
+
+    /**
+     * Time of the most recent failure, or null if the host has not failed.
+     */
+    public final Instant lastFailureTime;
+
+    /**
+     * True if the host already has the image of the slave being placed.
+     */
+    public final boolean hasImage;
+
+    public HostMetrics(HostAndPort host, HostStatus status, int capacity, int activeSlaves, Duration probeLatency,
+                       Instant lastFailureTime, boolean hasImage) {
+        this.host = checkNotNull(host);
+        this.status = checkNotNull(status);
+        this.capacity = capacity;
+        this.activeSlaves = activeSlaves;
+        this.probeLatency = checkNotNull(probeLatency);
+        this.lastFailureTime = lastFailureTime;
+        this.hasImage = hasImage;
+    }
+
+    /**
+     * Number of additional slaves the host can run. May be negative if the host is over capacity.
+     */
+    public int getRemaining() {
+        return capacity - activeSlaves;
+    }
+
+    /**
+     * True if the host is healthy and can run another slave.
+     */
+    public boolean isPreferred() {
+        return status == HostStatus.HEALTHY && getRemaining() > 0;
+    }
+}
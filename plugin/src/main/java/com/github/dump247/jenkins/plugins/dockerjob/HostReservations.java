@@ -0,0 +1,150 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.HostReservation;
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.SlaveOptions;
+import com.google.common.net.HostAndPort;
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.Maps.newHashMap;
+import static com.google.common.collect.Sets.newHashSet;
+
+/**
+ * Number of slaves placed on each host in a cloud.
+ * <p/>
+ * A slave reserves a slot on a host when it is provisioned, before it is launched. Reservations
+ * are taken one at a time, so concurrent provisioning can not place more than the maximum number
+ * of slaves on a host.
+ * <p/>
+ * The reservations are periodically checked against the slave nodes by {@link #reconcile}, so a
+ * reservation that was never released does not hold its slot forever.
+ */
+public class HostReservations {
+    /**
+     * Longer than a slave can take to be provisioned and launched.
+     */
+    public static final Duration ORPHAN_TIMEOUT = Duration.standardMinutes(15);
+
+    private final ConcurrentMap<HostAndPort, AtomicInteger> _counts = new ConcurrentHashMap<HostAndPort, AtomicInteger>();
+
+    /**
+     * Time each unreleased reservation was taken. Released reservations are removed by
+     * {@link #reconcile}.
+     */
+    private final Map<HostReservation, Instant> _issued = newHashMap();
+    private final int _maxPerHost;
+
+    public HostReservations(int maxPerHost) {
+        checkArgument(maxPerHost > 0);
+        _maxPerHost = maxPerHost;
+    }
+
+    /**
+     * Number of reservations currently held on a host.
+     */
+    public int count(HostAndPort host) {
+        AtomicInteger count = _counts.get(host);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * Reserve a slot on the first host that has one free.
+     *
+     * @param hosts hosts in order of preference
+     * @return reservation or null if all the hosts are full
+     */
+    public synchronized HostReservation reserve(List<HostMetrics> hosts) {
+        for (HostMetrics host : hosts) {
+            AtomicInteger count = getCount(host.host);
+
+            if (count.get() < _maxPerHost) {
+                return issue(host.host, count);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Count the reservations of slaves that were placed by another instance, for example the
+     * reservations of the cloud before its configuration was saved. Each unreleased reservation
+     * is replaced by one that counts against this instance.
+     *
+     * @param slaves options of the cloud's slave nodes
+     */
+    public synchronized void adopt(Iterable<SlaveOptions> slaves) {
+        for (SlaveOptions options : slaves) {
+            HostReservation reservation = options.getReservation();
+
+            if (reservation != null && !reservation.isReleased()) {
+                options.setReservation(issue(reservation.getHost(), getCount(reservation.getHost())));
+            }
+        }
+    }
+
+    /**
+     * Release reservations that are not held by any slave node, for example because the node was
+     * removed without notifying the cloud. Reservations newer than
+     * {@link #ORPHAN_TIMEOUT} are kept, because they may belong to a slave that is still being
+     * provisioned or to a hedged launch.
+     *
+     * @param slaves options of the cloud's slave nodes
+     * @return number of reservations released
+     */
+    public synchronized int reconcile(Iterable<SlaveOptions> slaves) {
+        Set<HostReservation> held = newHashSet();
+
+        for (SlaveOptions options : slaves) {
+            if (options.getReservation() != null) {
+                held.add(options.getReservation());
+            }
+        }
+
+        Instant orphanTime = Instant.now().minus(ORPHAN_TIMEOUT);
+        Iterator<Map.Entry<HostReservation, Instant>> issued = _issued.entrySet().iterator();
+        int released = 0;
+
+        while (issued.hasNext()) {
+            Map.Entry<HostReservation, Instant> entry = issued.next();
+            HostReservation reservation = entry.getKey();
+
+            if (reservation.isReleased()) {
+                issued.remove();
+            } else if (!held.contains(reservation) && entry.getValue().isBefore(orphanTime)) {
+                reservation.release();
+                issued.remove();
+                released += 1;
+            }
+        }
+
+        return released;
+    }
+
+    private HostReservation issue(HostAndPort host, AtomicInteger count) {
+        count.incrementAndGet();
+        HostReservation reservation = new HostReservation(host, count);
+        _issued.put(reservation, Instant.now());
+        return reservation;
+    }
+
+    private AtomicInteger getCount(HostAndPort host) {
+        AtomicInteger count = _counts.get(host);
+
+        if (count == null) {
+            count = new AtomicInteger();
+            AtomicInteger existing = _counts.putIfAbsent(host, count);
+            count = existing == null ? count : existing;
+        }
+
+        return count;
+    }
+}
@@ -0,0 +1,45 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.SlaveOptions;
+import hudson.ExtensionPoint;
+import com.google.common.collect.Ordering;
+import com.google.common.primitives.Ints;
+import hudson.model.AbstractDescribableImpl;
+
+import java.util.List;
+
+/**
+ * Extension point for choosing the host that runs a new slave.
+ */
+public abstract class HostSelectionStrategy extends AbstractDescribableImpl<HostSelectionStrategy> implements ExtensionPoint {
+    /**
+     * Healthy hosts with remaining capacity first, then degraded hosts with remaining capacity,
+     * then hosts that are full. Strategies order hosts within each group.
+     */
+    protected static final Ordering<HostMetrics> AVAILABILITY_ORDER = new Ordering<HostMetrics>() {
+        @Override
+        public int compare(HostMetrics left, HostMetrics right) {
+            return Ints.compare(availability(left), availability(right));
+        }
+
+        private int availability(HostMetrics host) {
+            return host.isPreferred() ? 0 : host.getRemaining() > 0 ? 1 : 2;
+        }
+    };
+
+    /**
+     * Order the available hosts by preference for running a slave. The slave is started on the
+     * first host in the result.
+     * <p/>
+     * The hosts are healthy or degraded, but may be at or over capacity. Hosts can be left out of
+     * the result to prevent the slave from running on them.
+     *
+     * @param options options of the slave being placed
+     * @param hosts   snapshot of the available hosts in the cloud
+     * @return hosts in order of preference
+     */
+    public abstract List<HostMetrics> rank(SlaveOptions options, List<HostMetrics> hosts);
+
+    public static abstract class Descriptor extends hudson.model.Descriptor<HostSelectionStrategy> {
+    }
+}
@@ -0,0 +1,190 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.SlaveClient;
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.net.HostAndPort;
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+
+import java.util.Random;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Immutable view of a single host at the time of the last inventory refresh.
+ * <p/>
+ * A new host starts as {@link HostStatus#PROBING}. A successful connection makes the host
+ * {@link HostStatus#HEALTHY}. Each failed connection or ping moves the host to
+ * {@link HostStatus#BACKING_OFF} with an exponentially increasing, jittered delay before the next
+ * attempt. After {@link #CIRCUIT_BREAKER_THRESHOLD} consecutive failures the circuit breaker opens
+ * and the host is {@link HostStatus#FAILED} until {@link #MAX_BACKOFF} expires. A host that
+ * reconnects after failing is {@link HostStatus#DEGRADED} until it has succeeded
+ * {@link #RECOVERY_PROBES} times in a row. A host that fails to launch a slave is also
+ * {@link HostStatus#DEGRADED} until it recovers.
+ */
+public class HostState {
+    public static final Duration MIN_BACKOFF = Duration.standardSeconds(30);
+    public static final Duration MAX_BACKOFF = Duration.standardMinutes(10);
+    public static final int CIRCUIT_BREAKER_THRESHOLD = 5;
+    public static final int RECOVERY_PROBES = 2;
+
+    /**
+     * Hosts that take longer than this to respond to a ping are considered degraded.
+     */
+    public static final Duration DEGRADED_LATENCY = Duration.standardSeconds(5);
+
+    private static final Random RANDOM = new Random();
+
+    public final HostAndPort host;
+    public final HostStatus status;
+    public final String message;
+    public final SlaveClient client;
+
+    /**
+     * Time taken by the most recent connection attempt or ping of the host.
+     */
+    public final Duration probeLatency;
+
+    public final int consecutiveFailures;
+    public final int consecutiveSuccesses;
+
+    /**
+     * Time of the most recent failure, or null if the host has not failed.
+     */
+    public final Instant lastFailureTime;
+
+    /**
+     * Earliest time the host should be contacted again.
+     */
+    public final Instant nextProbeTime;
+
+    /**
+     * Docker images available on the host as of the most recent successful ping, by tag and by
+     * digest.
+     */
+    public final Set<String> images;
+
+    private HostState(HostAndPort host, HostStatus status, String message, SlaveClient client, Duration probeLatency,
+                      int consecutiveFailures, int consecutiveSuccesses, Instant lastFailureTime, Instant nextProbeTime,
+                      Set<String> images) {
+        this.host = checkNotNull(host);
+        this.status = checkNotNull(status);
+        this.message = message;
+        this.client = client;
+        this.probeLatency = checkNotNull(probeLatency);
+        this.consecutiveFailures = consecutiveFailures;
+        this.consecutiveSuccesses = consecutiveSuccesses;
+        this.lastFailureTime = lastFailureTime;
+        this.nextProbeTime = checkNotNull(nextProbeTime);
+        this.images = ImmutableSet.copyOf(images);
+    }
+
+    public static HostState probing(HostAndPort host) {
+        return new HostState(host, HostStatus.PROBING, "Connecting", null, Duration.ZERO, 0, 0, null, new Instant(0),
+                ImmutableSet.<String>of());
+    }
+
+    /**
+     * Check if the host should be contacted during a refresh at the given time.
+     */
+    public boolean isProbeDue(Instant now) {
+        return !now.isBefore(nextProbeTime);
+    }
+
+    /**
+     * Check if the host has the given docker image. An image name with no tag or digest refers to
+     * the <code>latest</code> tag.
+     */
+    public boolean hasImage(String imageName) {
+        if (images.contains(imageName)) {
+            return true;
+        }
+
+        boolean hasTag = imageName.contains("@") || imageName.lastIndexOf(':') > imageName.lastIndexOf('/');
+        return !hasTag && images.contains(imageName + ":latest");
+    }
+
+    /**
+     * State after a successful connection or ping.
+     */
+    public HostState succeeded(String message, SlaveClient client, Duration latency, Set<String> images) {
+        int successes = consecutiveSuccesses + 1;
+        HostStatus newStatus = HostStatus.HEALTHY;
+
+        if (lastFailureTime != null && successes < RECOVERY_PROBES) {
+            newStatus = HostStatus.DEGRADED;
+        } else if (latency.isLongerThan(DEGRADED_LATENCY)) {
+            newStatus = HostStatus.DEGRADED;
+        }
+
+        return new HostState(host, newStatus, message, client, latency, 0, successes, lastFailureTime, new Instant(0), images);
+    }
+
+    /**
+     * State after a failed connection or ping.
+     * <p/>
+     * The client, if any, should be closed by the caller.
+     */
+    public HostState failed(Throwable error, Duration latency) {
+        Instant now = Instant.now();
+        int failures = consecutiveFailures + 1;
+        HostStatus newStatus = failures >= CIRCUIT_BREAKER_THRESHOLD ? HostStatus.FAILED : HostStatus.BACKING_OFF;
+
+        return new HostState(host, newStatus, error.getMessage(), null, latency, failures, 0, now, now.plus(backoff(failures)),
+                ImmutableSet.<String>of());
+    }
+
+    /**
+     * State after a slave failed to launch on the host.
+     * <p/>
+     * The host stays connected, but is {@link HostStatus#DEGRADED} until it has succeeded
+     * {@link #RECOVERY_PROBES} times in a row.
+     */
+    public HostState launchFailed(Throwable error) {
+        return launchFailed(error, Instant.now());
+    }
+
+    /**
+     * State after a slave failed to launch on the host at the given time.
+     *
+     * @see #launchFailed(Throwable)
+     */
+    public HostState launchFailed(Throwable error, Instant failureTime) {
+        HostStatus newStatus = status == HostStatus.HEALTHY ? HostStatus.DEGRADED : status;
+
+        return new HostState(host, newStatus, "Slave launch failed: " + error.getMessage(), client, probeLatency,
+                consecutiveFailures, 0, failureTime, nextProbeTime, images);
+    }
+
+    /**
+     * State of a host that has been removed by the host provider but still has active slaves.
+     */
+    public HostState draining() {
+        return new HostState(host, HostStatus.DRAINING, "Removed by host provider", client, probeLatency,
+                consecutiveFailures, consecutiveSuccesses, lastFailureTime, nextProbeTime, images);
+    }
+
+    /**
+     * Delay before the next connection attempt after the given number of consecutive failures.
+     * <p/>
+     * The delay doubles with each failure up to {@link #MAX_BACKOFF}. Half of the delay is
+     * randomized so hosts that fail together do not retry together.
+     */
+    private static Duration backoff(int failures) {
+        long maxMillis = MAX_BACKOFF.getMillis();
+        long millis = failures >= CIRCUIT_BREAKER_THRESHOLD
+                ? maxMillis
+                : Math.min(maxMillis, MIN_BACKOFF.getMillis() << Math.min(failures - 1, 20));
+        long half = millis / 2;
+
+        return Duration.millis(half + (long) (RANDOM.nextDouble() * half));
+    }
+
+    public static final Predicate<HostState> AVAILABLE_HOSTS = new Predicate<HostState>() {
+        public boolean apply(HostState input) {
+            return input.status.isAvailable();
+        }
+    };
+}
@@ -0,0 +1,49 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+/**
+ * Health of a docker job host.
+ * <p/>
+ * See {@link HostState} for the transitions between states.
+ */
+public enum HostStatus {
+    /**
+     * The host was discovered, but the first connection attempt has not completed yet.
+     */
+    PROBING,
+
+    /**
+     * The host is connected and responding normally.
+     */
+    HEALTHY,
+
+    /**
+     * The host is connected, but recently failed or is responding slowly. Slaves are only placed
+     * on degraded hosts if no healthy host has capacity.
+     */
+    DEGRADED,
+
+    /**
+     * The last connection attempt failed. The host will not be contacted again until its backoff
+     * period expires.
+     */
+    BACKING_OFF,
+
+    /**
+     * The host is no longer listed by the host provider, but still has running slaves. No new
+     * slaves are placed on the host and it is disconnected once the running slaves complete.
+     */
+    DRAINING,
+
+    /**
+     * The host has failed repeatedly and the circuit breaker is open. The host is only contacted
+     * again after the maximum backoff period.
+     */
+    FAILED;
+
+    /**
+     * Check if new slaves can be placed on a host with this status.
+     */
+    public boolean isAvailable() {
+        return this == HEALTHY || this == DEGRADED;
+    }
+}
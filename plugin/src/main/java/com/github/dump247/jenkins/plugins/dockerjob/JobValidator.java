@@ -0,0 +1,204 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import hudson.model.Label;
+import hudson.model.labels.LabelAtom;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.collect.Lists.newArrayListWithCapacity;
+import static java.util.logging.Level.FINE;
+
+/**
+ * Checks if jobs can run in a {@link DockerJobCloud}, based on the job's label expression.
+ * <p/>
+ * Results are cached by label expression. The cache is discarded when the labeled images in
+ * {@link DockerJobGlobalConfiguration} change. A change to the cloud configuration creates a new
+ * cloud, and so a new validator.
+ * <p/>
+ * Labeled images are indexed by the atoms they add to the cloud labels, so only the images that
+ * could change the outcome of a label expression are tested. Images are still tested in
+ * configuration order and the first match wins.
+ */
+public class JobValidator {
+    private static final Logger LOG = Logger.getLogger(JobValidator.class.getName());
+
+    /**
+     * Cache key for jobs that have no label expression. A label expression is never empty.
+     */
+    private static final String NO_LABEL_KEY = "";
+
+    private final String _cloudName;
+    private final Set<LabelAtom> _requiredLabels;
+    private final Set<LabelAtom> _allLabels;
+
+    private volatile Cache _cache;
+
+    public JobValidator(String cloudName, Set<LabelAtom> requiredLabels, Set<LabelAtom> labels) {
+        _cloudName = checkNotNull(cloudName);
+        _requiredLabels = ImmutableSet.copyOf(requiredLabels);
+        _allLabels = ImmutableSet.copyOf(Sets.union(requiredLabels, labels));
+    }
+
+    /**
+     * Check if a job with the given label expression can run in the cloud.
+     *
+     * @param label job label expression, or null if the job has none
+     * @return result if the job can run in the cloud, absent otherwise
+     */
+    public Optional<JobValidationResult> validate(Label label) {
+        Cache cache = getCache(DockerJobGlobalConfiguration.get().getLabeledImages());
+        String key = label == null ? NO_LABEL_KEY : label.getExpression();
+        Optional<JobValidationResult> result = cache.results.get(key);
+
+        if (result == null) {
+            result = evaluate(label, cache);
+            cache.results.putIfAbsent(key, result);
+        }
+
+        return result;
+    }
+
+    private Cache getCache(List<LabeledDockerImage> labeledImages) {
+        Cache cache = _cache;
+
+        // The configuration replaces the list whenever the images change
+        if (cache == null || cache.labeledImages != labeledImages) {
+            cache = new Cache(labeledImages, _allLabels);
+            _cache = cache;
+        }
+
+        return cache;
+    }
+
+    private Optional<JobValidationResult> evaluate(Label label, Cache cache) {
+        if (label == null) {
+            if (_requiredLabels.size() > 0) {
+                LOG.log(FINE, "Condition does not include required labels: condition={0} cloud={1} required={2}", new Object[]{label, _cloudName, _requiredLabels});
+                return Optional.absent();
+            } else {
+                LOG.log(FINE, "Condition matched cloud labels: condition={0} cloud={1} labels={2}", new Object[]{label, _cloudName, _allLabels});
+                return Optional.of(new JobValidationResult(_allLabels, null, ImmutableMap.<String, String>of()));
+            }
+        }
+
+        // Check that the condition includes all the required atoms
+        if (!label.listAtoms().containsAll(_requiredLabels)) {
+            LOG.log(FINE, "Condition does not include required labels: condition={0} cloud={1} required={2}", new Object[]{label, _cloudName, _requiredLabels});
+            return Optional.absent();
+        }
+
+        // Check if the condition matches the cloud's labels
+        if (label.matches(_allLabels)) {
+            LOG.log(FINE, "Condition matched cloud labels: condition={0} cloud={1} labels={2}", new Object[]{label, _cloudName, _allLabels});
+            return Optional.of(new JobValidationResult(_allLabels, null, ImmutableMap.<String, String>of()));
+        }
+
+        // Check if the condition matches the cloud's labels combined with a specific image. Only
+        // images that add an atom used by the condition can change the result of the match above.
+        for (ImageCandidate candidate : cache.findCandidates(label.listAtoms())) {
+            if (label.matches(candidate.labels)) {
+                LOG.log(FINE, "Condition matched cloud+image labels: condition={0} cloud={1} image={2} labels={3}", new Object[]{label, _cloudName, candidate.image.imageName, candidate.labels});
+                return Optional.of(new JobValidationResult(candidate.labels, candidate.image.imageName, candidate.image.getEnvironmentVars()));
+            } else {
+                LOG.log(FINE, "Condition does not match cloud+image labels: condition={0} cloud={1} image={2} labels={3}", new Object[]{label, _cloudName, candidate.image.imageName, candidate.labels});
+            }
+        }
+
+        LOG.log(FINE, "Condition does not match cloud: condition={0} cloud={1} labels={2} images={3}", new Object[]{label, _cloudName, _allLabels, cache.candidates.size()});
+        return Optional.absent();
+    }
+
+    public static class JobValidationResult {
+        public final Set<LabelAtom> labels;
+        public final String imageName;
+        public final Map<String, String> environment;
+
+        public JobValidationResult(Set<LabelAtom> labels, String imageName, Map<String, String> environment) {
+            this.labels = labels;
+            this.imageName = imageName;
+            this.environment = environment;
+        }
+    }
+
+    /**
+     * Labeled image with the full set of labels a slave running the image would have.
+     */
+    private static class ImageCandidate {
+        public final LabeledDockerImage image;
+        public final Set<LabelAtom> labels;
+
+        public ImageCandidate(LabeledDockerImage image, Set<LabelAtom> cloudLabels) {
+            this.image = image;
+            this.labels = ImmutableSet.copyOf(Sets.union(image.getLabels(), cloudLabels));
+        }
+    }
+
+    /**
+     * Validation results for a specific list of labeled images.
+     */
+    private static class Cache {
+        public final List<LabeledDockerImage> labeledImages;
+        public final List<ImageCandidate> candidates;
+        public final ConcurrentMap<String, Optional<JobValidationResult>> results = new ConcurrentHashMap<String, Optional<JobValidationResult>>();
+
+        /**
+         * Index of each candidate, in configuration order, keyed by the atoms the candidate adds
+         * to the cloud labels.
+         */
+        private final ImmutableListMultimap<LabelAtom, Integer> _atomIndex;
+
+        public Cache(List<LabeledDockerImage> labeledImages, Set<LabelAtom> cloudLabels) {
+            ImmutableList.Builder<ImageCandidate> candidates = ImmutableList.builder();
+            ImmutableListMultimap.Builder<LabelAtom, Integer> atomIndex = ImmutableListMultimap.builder();
+            int index = 0;
+
+            for (LabeledDockerImage image : labeledImages) {
+                candidates.add(new ImageCandidate(image, cloudLabels));
+
+                for (LabelAtom atom : Sets.difference(image.getLabels(), cloudLabels)) {
+                    atomIndex.put(atom, index);
+                }
+
+                index += 1;
+            }
+
+            this.labeledImages = labeledImages;
+            this.candidates = candidates.build();
+            _atomIndex = atomIndex.build();
+        }
+
+        /**
+         * Candidates that add at least one of the given atoms to the cloud labels, in
+         * configuration order.
+         */
+        public List<ImageCandidate> findCandidates(Set<LabelAtom> atoms) {
+            SortedSet<Integer> indexes = new TreeSet<Integer>();
+
+            for (LabelAtom atom : atoms) {
+                indexes.addAll(_atomIndex.get(atom));
+            }
+
+            List<ImageCandidate> result = newArrayListWithCapacity(indexes.size());
+
+            for (int index : indexes) {
+                result.add(candidates.get(index));
+            }
+
+            return result;
+        }
+    }
+}
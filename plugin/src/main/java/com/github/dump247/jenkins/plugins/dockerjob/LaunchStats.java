@@ -0,0 +1,189 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.google.common.base.Optional;
+import org.joda.time.Duration;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.collect.Maps.newHashMap;
+
+/**
+ * Statistics for slave launches in a cloud.
+ * <p/>
+ * Counts how often launches reuse an existing job container. <code>create_slave.py</code> reports
+ * whether it reused the job container or created a new one in the slave log. Each launch feeds its
+ * log lines to {@link #recordLogLine(String)}.
+ * <p/>
+ * Also keeps the time it took recent slaves to connect, which decides when a slow launch is
+ * hedged, and the number of hedged launches, which is limited to a fraction of all launches.
+ * <p/>
+ * Statistics are kept by cloud name, see {@link #forCloud(String)}, so they survive saving the
+ * cloud configuration, which creates a new cloud.
+ */
+public class LaunchStats {
+    private static final Map<String, LaunchStats> CLOUD_STATS = newHashMap();
+
+    private static final String REUSED_PREFIX = "Reusing existing container ";
+    private static final String CREATED_PREFIX = "Creating container: ";
+
+    /**
+     * Number of recent launch latencies kept.
+     */
+    public static final int LATENCY_SAMPLES = 100;
+
+    /**
+     * Minimum number of launch latencies before a percentile is reported.
+     */
+    public static final int MIN_LATENCY_SAMPLES = 20;
+
+    private final AtomicLong _reused = new AtomicLong();
+    private final AtomicLong _created = new AtomicLong();
+
+    private final long[] _latencies = new long[LATENCY_SAMPLES];
+    private int _latencyCount;
+    private long _launches;
+    private long _hedges;
+
+    /**
+     * Statistics of the cloud with the given name. The same instance is returned for each cloud
+     * name until Jenkins restarts.
+     */
+    public static LaunchStats forCloud(String cloudName) {
+        synchronized (CLOUD_STATS) {
+            LaunchStats stats = CLOUD_STATS.get(cloudName);
+
+            if (stats == null) {
+                stats = new LaunchStats();
+                CLOUD_STATS.put(cloudName, stats);
+            }
+
+            return stats;
+        }
+    }
+
+    /**
+     * Record a line from the log of a slave launch.
+     *
+     * @return true if the line indicated whether the job container was reused
+     */
+    public boolean recordLogLine(String line) {
+        if (line.startsWith(REUSED_PREFIX)) {
+            _reused.incrementAndGet();
+            return true;
+        } else if (line.startsWith(CREATED_PREFIX)) {
+            _created.incrementAndGet();
+            return true;
+        }
+
+        return false;
+    }
+
+    public long getReusedCount() {
+        return _reused.get();
+    }
+
+    public long getCreatedCount() {
+        return _created.get();
+    }
+
+    /**
+     * Fraction of launches that reused an existing job container, or 0 if there were no launches.
+     */
+    public double getReuseRate() {
+        long reused = _reused.get();
+        long total = reused + _created.get();
+        return total == 0 ? 0 : (double) reused / total;
+    }
+
+    /**
+     * {@link #getReuseRate()} as a whole percentage.
+     */
+    public long getReusePercent() {
+        return Math.round(getReuseRate() * 100);
+    }
+
+    /**
+     * Number of launches, not counting hedged launches.
+     */
+    public synchronized long getLaunchCount() {
+        return _launches;
+    }
+
+    /**
+     * Number of hedged launches that were started.
+     */
+    public synchronized long getHedgeCount() {
+        return _hedges;
+    }
+
+    /**
+     * Record the time from starting a launch until the slave started to connect.
+     * <p/>
+     * When a hedged launch wins, the launch it hedged never connects. Its elapsed time is recorded
+     * instead, which is less than its latency. Leaving it out would drop the slowest launches and
+     * lower the hedge delay every time a hedge wins.
+     */
+    public synchronized void recordLatency(Duration latency) {
+        _latencies[_latencyCount % LATENCY_SAMPLES] = latency.getMillis();
+        _latencyCount += 1;
+    }
+
+    /**
+     * Launch latency below which the given percentage of recent launches connected.
+     *
+     * @param percentile 1 to 100
+     * @return latency or absent if there are not enough recent launches
+     */
+    public synchronized Optional<Duration> getLatencyPercentile(int percentile) {
+        int count = Math.min(_latencyCount, LATENCY_SAMPLES);
+
+        if (count < MIN_LATENCY_SAMPLES) {
+            return Optional.absent();
+        }
+
+        long[] sorted = Arrays.copyOf(_latencies, count);
+        Arrays.sort(sorted);
+
+        int index = Math.max(0, (int) Math.ceil(percentile / 100.0 * count) - 1);
+        return Optional.of(new Duration(sorted[Math.min(index, count - 1)]));
+    }
+
+    /**
+     * Record the start of a launch. Hedged launches are not counted.
+     */
+    public synchronized void recordLaunch() {
+        _launches += 1;
+    }
+
+    /**
+     * Take a hedged launch from the budget. If the hedged launch does not start, the caller must
+     * return it with {@link #cancelHedge()}.
+     *
+     * @param maxHedgePercent maximum hedged launches, as a percentage of all launches
+     * @return false if the budget is used up
+     */
+    public synchronized boolean tryHedge(int maxHedgePercent) {
+        if ((_hedges + 1) * 100 > _launches * maxHedgePercent) {
+            return false;
+        }
+
+        _hedges += 1;
+        return true;
+    }
+
+    /**
+     * Return a hedged launch that did not start to the budget.
+     */
+    public synchronized void cancelHedge() {
+        _hedges -= 1;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long reused = _reused.get();
+        long created = _created.get();
+        return String.format("reused=%d created=%d rate=%.2f launches=%d hedged=%d", reused, created, getReuseRate(), _launches, _hedges);
+    }
+}
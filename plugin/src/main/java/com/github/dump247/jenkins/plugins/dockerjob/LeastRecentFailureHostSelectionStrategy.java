@@ -0,0 +1,43 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.SlaveOptions;
+import com.google.common.collect.Ordering;
+import com.google.common.primitives.Ints;
+import hudson.Extension;
+import org.joda.time.Instant;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.util.List;
+
+/**
+ * Places each slave on a host that has never failed, or failed longest ago, then on the host with
+ * the most remaining capacity. Useful when some hosts in the cloud are unreliable.
+ */
+public class LeastRecentFailureHostSelectionStrategy extends HostSelectionStrategy {
+    private static final Ordering<Instant> FAILURE_ORDER = Ordering.<Instant>natural().nullsFirst();
+
+    private static final Ordering<HostMetrics> ORDER = AVAILABILITY_ORDER.compound(new Ordering<HostMetrics>() {
+        @Override
+        public int compare(HostMetrics left, HostMetrics right) {
+            int result = FAILURE_ORDER.compare(left.lastFailureTime, right.lastFailureTime);
+            return result != 0 ? result : Ints.compare(right.getRemaining(), left.getRemaining());
+        }
+    });
+
+    @DataBoundConstructor
+    public LeastRecentFailureHostSelectionStrategy() {
+    }
+
+    @Override
+    public List<HostMetrics> rank(SlaveOptions options, List<HostMetrics> hosts) {
+        return ORDER.sortedCopy(hosts);
+    }
+
+    @Extension
+    public static class Descriptor extends HostSelectionStrategy.Descriptor {
+        @Override
+        public String getDisplayName() {
+            return "Least recent failure";
+        }
+    }
+}
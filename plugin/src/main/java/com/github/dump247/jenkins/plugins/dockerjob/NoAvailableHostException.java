@@ -0,0 +1,13 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import java.io.IOException;
+
+/**
+ * No host in a cloud can take a slave, because they are all full, unavailable or have already
+ * failed to launch it.
+ */
+public class NoAvailableHostException extends IOException {
+    public NoAvailableHostException(String message) {
+        super(message);
+    }
+}
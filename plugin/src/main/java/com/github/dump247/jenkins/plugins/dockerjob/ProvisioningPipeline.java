@@ -0,0 +1,134 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import hudson.model.AbstractProject;
+import hudson.model.Label;
+import jenkins.model.Jenkins;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static com.github.dump247.jenkins.plugins.dockerjob.util.JenkinsUtils.getClouds;
+import static java.lang.String.format;
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Provisions slaves for jobs in the background, off the Jenkins queue maintenance thread.
+ * <p/>
+ * Provisioning runs in stages:
+ * <ol>
+ * <li>A job is submitted when it becomes buildable ({@link DockerJobQueueListener}) or when
+ * {@link DockerJobLoadBalancer} finds no slave for one of its work chunks. Submitting only checks
+ * that the request is not already in progress.</li>
+ * <li>A pool thread asks each cloud to provision the job, which validates the job, admits it and
+ * adds the slave node. Requests for different jobs run in parallel.</li>
+ * <li>The new slave connects on the Jenkins remoting thread pool. The load balancer maps the job
+ * to the slave once it is online.</li>
+ * </ol>
+ * A request that could not be provisioned, for example because the clouds are full, is
+ * forgotten. The load balancer submits it again the next time it maps the job.
+ */
+public final class ProvisioningPipeline {
+    private static final Logger LOG = Logger.getLogger(ProvisioningPipeline.class.getName());
+
+    /**
+     * Maximum number of jobs being provisioned at the same time.
+     */
+    public static final int MAX_THREADS = 8;
+
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(
+            MAX_THREADS, MAX_THREADS, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactoryBuilder()
+                    .setNameFormat("docker-job-provision-%d")
+                    .setDaemon(true)
+                    .build());
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Names of the jobs that are waiting for or being provisioned.
+     */
+    private static final Set<String> PENDING = Sets.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private ProvisioningPipeline() {
+    }
+
+    /**
+     * Start provisioning a slave for a job in the background.
+     *
+     * @param jobName name of the job, including the work chunk index if not the first chunk
+     * @param label   label expression of the work chunk
+     * @return false if the job is already being provisioned
+     */
+    public static boolean submit(final Jenkins jenkins, final String jobName, final AbstractProject job, final Label label) {
+        if (!PENDING.add(jobName)) {
+            return false;
+        }
+
+        LOG.log(FINE, "Provisioning request: job={0} waiting={1}", new Object[]{jobName, EXECUTOR.getQueue().size()});
+
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    provision(jenkins, jobName, job, label);
+                } finally {
+                    PENDING.remove(jobName);
+                }
+            }
+        });
+
+        return true;
+    }
+
+    /**
+     * Check if any cloud can run jobs with the given label expression.
+     */
+    public static boolean isSupported(Jenkins jenkins, Label label) {
+        for (DockerJobCloud cloud : getClouds(jenkins, DockerJobCloud.class)) {
+            if (cloud.canProvision(label)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Number of requests waiting for a thread.
+     */
+    public static int getQueueDepth() {
+        return EXECUTOR.getQueue().size();
+    }
+
+    private static void provision(Jenkins jenkins, String jobName, AbstractProject job, Label label) {
+        // The job may have been submitted again while its slave was being added
+        if (UnmappedSlaveIndex.find(jenkins, jobName) != null) {
+            return;
+        }
+
+        for (DockerJobCloud cloud : getClouds(jenkins, DockerJobCloud.class)) {
+            try {
+                DockerJobCloud.ProvisionResult result = cloud.provisionJob(jobName, job, label);
+
+                if (result == DockerJobCloud.ProvisionResult.SUCCESS) {
+                    LOG.log(FINE, "Successfully provisioned job: name={0} cloud={1}", new Object[]{jobName, cloud.getDisplayName()});
+                    return;
+                } else if (result == DockerJobCloud.ProvisionResult.NO_CAPACITY) {
+                    LOG.log(FINE, "Cloud capacity is exceeded: name={0} cloud={1}", new Object[]{jobName, cloud.getDisplayName()});
+                }
+            } catch (Exception ex) {
+                LOG.log(WARNING, format("Failed to launch task: name=%s cloud=%s", jobName, cloud.getDisplayName()), ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.HostReservation;
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.LaunchLimiter;
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.SlaveClient;
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.SlaveOptions;
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import hudson.model.TaskListener;
+import hudson.slaves.SlaveComputer;
+import org.joda.time.Duration;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.io.PushbackInputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.FINER;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * A slave container that was started on a host and is waiting for the slave to connect.
+ * <p/>
+ * The slave jar writes to its channel as soon as it connects, so the first byte of output from
+ * the launch shows that the slave is up. If the launch fails before the slave connects,
+ * <code>create_slave.py</code> exits and the output ends without any data.
+ * <p/>
+ * A slave that connects directly to the master does not write to the launch output. The launch
+ * is connected once the master has a channel to the slave computer.
+ */
+public class SlaveLaunch {
+    private static final Logger LOG = Logger.getLogger(SlaveLaunch.class.getName());
+
+    /**
+     * Threads that wait for slaves to connect.
+     */
+    public static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder()
+                    .setNameFormat("docker-job-launch-%d")
+                    .setDaemon(true)
+                    .build());
+
+    /**
+     * How often a direct connection launch checks if the slave has connected.
+     */
+    private static final long DIRECT_POLL_MILLIS = 250;
+
+    public final SlaveOptions options;
+    public final SlaveClient.SlaveConnection connection;
+
+    private final PushbackInputStream _output;
+    private final long _startNanos;
+    private volatile long _connectNanos;
+    private volatile IOException _failure;
+    private Thread _logReader;
+
+    public SlaveLaunch(SlaveOptions options, SlaveClient.SlaveConnection connection) {
+        this.options = options;
+        this.connection = connection;
+        _output = new PushbackInputStream(connection.getOutput(), 1);
+        _startNanos = System.nanoTime();
+    }
+
+    /**
+     * Output of the slave. Includes the first byte read by {@link #watch}.
+     */
+    public InputStream getOutput() {
+        return _output;
+    }
+
+    /**
+     * Time from the start of the launch until the slave connected.
+     */
+    public Duration getLatency() {
+        return new Duration(TimeUnit.NANOSECONDS.toMillis(_connectNanos - _startNanos));
+    }
+
+    /**
+     * Time since the start of the launch.
+     */
+    public Duration getElapsed() {
+        return new Duration(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - _startNanos));
+    }
+
+    /**
+     * Error that ended the launch before the slave connected, or null if the slave connected.
+     */
+    public IOException getFailure() {
+        return _failure;
+    }
+
+    /**
+     * Wait in the background for the slave to connect. The launch is added to the completion
+     * service once the slave connects or the launch fails. If the launch exits before the slave
+     * connects, the failure is an {@link EOFException}.
+     */
+    public void watch(CompletionService<SlaveLaunch> completion) {
+        completion.submit(new Callable<SlaveLaunch>() {
+            @Override
+            public SlaveLaunch call() {
+                try {
+                    int value = _output.read();
+
+                    if (value < 0) {
+                        throw new EOFException("Slave launch exited before the slave connected: " + options.getName());
+                    }
+
+                    _output.unread(value);
+                    _connectNanos = System.nanoTime();
+                } catch (IOException ex) {
+                    _failure = ex;
+                }
+
+                return SlaveLaunch.this;
+            }
+        });
+    }
+
+    /**
+     * Wait in the background for a slave that connects directly to the master. The launch is added
+     * to the completion service once the computer has a channel or the launch exits.
+     */
+    public void watchDirect(CompletionService<SlaveLaunch> completion, final SlaveComputer computer) {
+        // The launch writes nothing to its output, so the output only ends when the launch exits
+        final Future<?> exited = EXECUTOR.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                while (_output.read() >= 0) {
+                    // Discard
+                }
+
+                return null;
+            }
+        });
+
+        completion.submit(new Callable<SlaveLaunch>() {
+            @Override
+            public SlaveLaunch call() throws InterruptedException {
+                while (computer.getChannel() == null) {
+                    try {
+                        exited.get(DIRECT_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                        _failure = new EOFException("Slave launch exited before the slave connected: " + options.getName());
+                        return SlaveLaunch.this;
+                    } catch (TimeoutException ex) {
+                        // Still running
+                    } catch (ExecutionException ex) {
+                        _failure = new IOException("Error reading slave launch output: " + options.getName(), ex.getCause());
+                        return SlaveLaunch.this;
+                    }
+                }
+
+                _connectNanos = System.nanoTime();
+                return SlaveLaunch.this;
+            }
+        });
+    }
+
+    /**
+     * Copy the launch log to the listener and record container reuse in the launch statistics.
+     *
+     * @param prefix added to each log line, to tell launches of the same slave apart
+     */
+    public void startLogReader(final TaskListener listener, final LaunchStats launchStats, final String prefix) {
+        _logReader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                BufferedReader reader = null;
+
+                try {
+                    reader = new BufferedReader(new InputStreamReader(connection.getLog(), Charsets.UTF_8));
+                    PrintStream logger = listener.getLogger();
+                    String line;
+
+                    boolean recorded = false;
+
+                    while ((line = reader.readLine()) != null) {
+                        logger.println(prefix + line);
+
+                        if (!recorded) {
+                            recorded = launchStats.recordLogLine(line);
+                        }
+                    }
+                } catch (InterruptedIOException ex) {
+                    LOG.log(FINER, "Log stream read thread cancelled for job " + options.getName());
+                } catch (Throwable ex) {
+                    LOG.log(WARNING, "Error reading log stream for job " + options.getName(), ex);
+                } finally {
+                    if (reader != null) {
+                        try {
+                            reader.close();
+                        } catch (IOException ex) {
+                            LOG.log(FINER, "Error closing log stream for job " + options.getName(), ex);
+                        }
+                    }
+                }
+            }
+        });
+        _logReader.setDaemon(true);
+        _logReader.setName(options.getName().replaceAll("[^a-zA-Z0-9_-]", "_") + "-log-reader");
+        _logReader.start();
+    }
+
+    /**
+     * Close the connection and wait for the log reader to finish.
+     */
+    public void close() {
+        connection.close();
+
+        if (_logReader != null) {
+            try {
+                _logReader.interrupt();
+                _logReader.join(5000);
+            } catch (Throwable ex) {
+                LOG.log(FINER, "Error stopping log reading thread for job " + options.getName(), ex);
+            }
+        }
+    }
+
+    /**
+     * Tear down a launch that lost to another launch of the same slave, or failed. Closing the
+     * connection closes the input of the slave, which stops the container. The host slot and
+     * launch permit are released.
+     */
+    public void abort() {
+        close();
+        releasePermit();
+
+        HostReservation reservation = options.getReservation();
+
+        if (reservation != null) {
+            reservation.release();
+        }
+    }
+
+    /**
+     * Let the host start the next launch.
+     */
+    public void releasePermit() {
+        LaunchLimiter.Permit permit = options.getLaunchPermit();
+
+        if (permit != null) {
+            permit.release();
+        }
+    }
+}
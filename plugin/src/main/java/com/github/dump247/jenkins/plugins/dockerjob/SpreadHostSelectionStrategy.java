@@ -0,0 +1,41 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.github.dump247.jenkins.plugins.dockerjob.slaves.SlaveOptions;
+import com.google.common.collect.Ordering;
+import com.google.common.primitives.Longs;
+import hudson.Extension;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.util.List;
+
+/**
+ * Places each slave on the least utilized host, then the most responsive host, regardless of
+ * whether the host has the slave image. Jobs share hosts as little as possible.
+ */
+public class SpreadHostSelectionStrategy extends HostSelectionStrategy {
+    private static final Ordering<HostMetrics> ORDER = AVAILABILITY_ORDER.compound(new Ordering<HostMetrics>() {
+        @Override
+        public int compare(HostMetrics left, HostMetrics right) {
+            // Compare activeSlaves / capacity without dividing
+            int result = Longs.compare((long) left.activeSlaves * right.capacity, (long) right.activeSlaves * left.capacity);
+            return result != 0 ? result : left.probeLatency.compareTo(right.probeLatency);
+        }
+    });
+
+    @DataBoundConstructor
+    public SpreadHostSelectionStrategy() {
+    }
+
+    @Override
+    public List<HostMetrics> rank(SlaveOptions options, List<HostMetrics> hosts) {
+        return ORDER.sortedCopy(hosts);
+    }
+
+    @Extension
+    public static class Descriptor extends HostSelectionStrategy.Descriptor {
+        @Override
+        public String getDisplayName() {
+            return "Spread";
+        }
+    }
+}
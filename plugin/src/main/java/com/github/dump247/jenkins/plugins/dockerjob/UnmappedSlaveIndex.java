@@ -0,0 +1,88 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import jenkins.model.Jenkins;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.collect.Lists.newLinkedList;
+import static com.google.common.collect.Maps.newHashMap;
+
+/**
+ * Index of {@link DockerJobSlave}s that have not been mapped to a job yet, keyed by job name.
+ * <p/>
+ * Slaves are added when they are provisioned and removed when they are mapped to their job or
+ * removed from Jenkins. This lets {@link DockerJobLoadBalancer} find the slave for a job without
+ * scanning every node in Jenkins.
+ */
+public final class UnmappedSlaveIndex {
+    private static final Map<String, List<DockerJobSlave>> SLAVES = newHashMap();
+
+    private UnmappedSlaveIndex() {
+    }
+
+    public static void add(DockerJobSlave slave) {
+        synchronized (SLAVES) {
+            List<DockerJobSlave> slaves = SLAVES.get(slave.jobName);
+
+            if (slaves == null) {
+                slaves = newLinkedList();
+                SLAVES.put(slave.jobName, slaves);
+            }
+
+            slaves.add(slave);
+        }
+    }
+
+    public static void remove(DockerJobSlave slave) {
+        synchronized (SLAVES) {
+            List<DockerJobSlave> slaves = SLAVES.get(slave.jobName);
+
+            if (slaves != null) {
+                slaves.remove(slave);
+
+                if (slaves.isEmpty()) {
+                    SLAVES.remove(slave.jobName);
+                }
+            }
+        }
+    }
+
+    /**
+     * Find an unmapped slave for a job.
+     * <p/>
+     * Slaves that are no longer registered with Jenkins (for example, because the node was
+     * deleted outside of this plugin) are dropped from the index.
+     *
+     * @return slave or null if there is no unmapped slave for the job
+     */
+    public static DockerJobSlave find(Jenkins jenkins, String jobName) {
+        synchronized (SLAVES) {
+            List<DockerJobSlave> slaves = SLAVES.get(jobName);
+
+            if (slaves == null) {
+                return null;
+            }
+
+            Iterator<DockerJobSlave> iter = slaves.iterator();
+            DockerJobSlave result = null;
+
+            while (iter.hasNext() && result == null) {
+                DockerJobSlave slave = iter.next();
+
+                if (slave.isMapped || jenkins.getNode(slave.getNodeName()) != slave) {
+                    iter.remove();
+                } else {
+                    result = slave;
+                }
+            }
+
+            if (slaves.isEmpty()) {
+                SLAVES.remove(jobName);
+            }
+
+            return result;
+        }
+    }
+}
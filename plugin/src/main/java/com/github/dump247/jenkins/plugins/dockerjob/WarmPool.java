@@ -0,0 +1,230 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.github.dump247.jenkins.plugins.dockerjob.JobValidator.JobValidationResult;
+import hudson.model.Computer;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Lists.newLinkedList;
+import static com.google.common.collect.Maps.newHashMap;
+import static java.util.logging.Level.FINE;
+
+/**
+ * Idle, connected slaves that were started ahead of demand for each labeled image in a cloud.
+ * <p/>
+ * A job that runs on a labeled image and has no job-specific docker options can use any slave
+ * started with that image, so it is given a warm slave when one is available rather than waiting
+ * for a new container to start. The number of warm slaves for each image follows the recent rate
+ * of such jobs, up to the size configured on the cloud.
+ */
+public class WarmPool {
+    private static final Logger LOG = Logger.getLogger(WarmPool.class.getName());
+
+    /**
+     * Weight of the most recent refresh period in the demand average.
+     */
+    private static final double DEMAND_WEIGHT = 0.2;
+
+    private final String _cloudName;
+    private final int _maxSize;
+    private final Map<String, ImagePool> _pools = newHashMap();
+
+    /**
+     * @param cloudName name of the cloud the pool belongs to
+     * @param maxSize   maximum number of warm slaves for each image, 0 to disable the pool
+     */
+    public WarmPool(String cloudName, int maxSize) {
+        checkArgument(maxSize >= 0);
+        _cloudName = cloudName;
+        _maxSize = maxSize;
+    }
+
+    public boolean isEnabled() {
+        return _maxSize > 0;
+    }
+
+    /**
+     * Check if a warm slave for the given labeled image is ready to be claimed.
+     */
+    public synchronized boolean hasReady(JobValidationResult image) {
+        ImagePool pool = _pools.get(image.imageName);
+
+        if (pool == null) {
+            return false;
+        }
+
+        for (DockerJobSlave slave : pool.slaves) {
+            if (isReady(slave)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Take a warm slave for a job that runs on the given labeled image.
+     *
+     * @return slave or null if no warm slave is ready
+     */
+    public synchronized DockerJobSlave claim(JobValidationResult image) {
+        ImagePool pool = _pools.get(image.imageName);
+
+        if (pool == null) {
+            return null;
+        }
+
+        Iterator<DockerJobSlave> iter = pool.slaves.iterator();
+
+        while (iter.hasNext()) {
+            DockerJobSlave slave = iter.next();
+
+            if (isReady(slave)) {
+                iter.remove();
+                pool.claimed += 1;
+                LOG.log(FINE, "Claimed warm slave: cloud={0} image={1} slave={2}", new Object[]{_cloudName, image.imageName, slave.getNodeName()});
+                return slave;
+            }
+        }
+
+        return null;
+    }
+
+    private static boolean isReady(DockerJobSlave slave) {
+        Computer computer = slave.toComputer();
+        return computer != null && computer.isOnline() && computer.isIdle();
+    }
+
+    /**
+     * Record that a job that can use a warm slave for the given image was started, either on a
+     * warm slave or on a new slave.
+     */
+    public synchronized void recordDemand(JobValidationResult image) {
+        if (isEnabled()) {
+            getPool(image).requests += 1;
+        }
+    }
+
+    public synchronized void add(JobValidationResult image, DockerJobSlave slave) {
+        getPool(image).slaves.add(slave);
+    }
+
+    /**
+     * Add the unclaimed warm slaves of another pool, for example the pool of the cloud before its
+     * configuration was saved. The demand for each image starts at the number of adopted slaves,
+     * so the slaves are kept while jobs still ask for them, and terminated by {@link #refill}
+     * otherwise or if the pool is now smaller.
+     *
+     * @param slaves slave nodes of the cloud
+     */
+    public synchronized void adopt(Iterable<DockerJobSlave> slaves) {
+        for (DockerJobSlave slave : slaves) {
+            JobValidationResult image = slave.warmImage;
+
+            if (slave.isWarm && image != null) {
+                ImagePool pool = getPool(image);
+                pool.slaves.add(slave);
+                pool.demand += 1;
+                LOG.log(FINE, "Adopted warm slave: cloud={0} image={1} slave={2}", new Object[]{_cloudName, image.imageName, slave.getNodeName()});
+            }
+        }
+    }
+
+    public synchronized void remove(DockerJobSlave slave) {
+        for (ImagePool pool : _pools.values()) {
+            pool.slaves.remove(slave);
+        }
+    }
+
+    /**
+     * Update the demand for each image and compute the change in the number of warm slaves.
+     * Called once per refresh period.
+     *
+     * @param launcher starts new warm slaves
+     */
+    public void refill(Launcher launcher) {
+        List<JobValidationResult> launch = newArrayList();
+        List<DockerJobSlave> terminate = newArrayList();
+
+        synchronized (this) {
+            Iterator<ImagePool> iter = _pools.values().iterator();
+
+            while (iter.hasNext()) {
+                ImagePool pool = iter.next();
+                pool.demand = (1 - DEMAND_WEIGHT) * pool.demand + DEMAND_WEIGHT * pool.requests;
+                pool.requests = 0;
+
+                int target = Math.min(_maxSize, (int) Math.ceil(pool.demand - 0.01));
+                int current = pool.slaves.size();
+
+                LOG.log(FINE, "Warm pool: cloud={0} image={1} demand={2} target={3} current={4} claimed={5}",
+                        new Object[]{_cloudName, pool.image.imageName, pool.demand, target, current, pool.claimed});
+
+                for (int i = current; i < target; i++) {
+                    launch.add(pool.image);
+                }
+
+                // Terminate the newest slaves first, since the oldest are most likely to be ready
+                while (pool.slaves.size() > target) {
+                    terminate.add(pool.slaves.removeLast());
+                }
+
+                if (target == 0 && pool.slaves.isEmpty()) {
+                    iter.remove();
+                }
+            }
+        }
+
+        for (DockerJobSlave slave : terminate) {
+            Computer computer = slave.toComputer();
+
+            if (computer instanceof DockerJobComputer) {
+                ((DockerJobComputer) computer).terminate();
+            }
+        }
+
+        for (JobValidationResult image : launch) {
+            if (!launcher.launchWarmSlave(image)) {
+                break;
+            }
+        }
+    }
+
+    private ImagePool getPool(JobValidationResult image) {
+        ImagePool pool = _pools.get(image.imageName);
+
+        if (pool == null) {
+            pool = new ImagePool(image);
+            _pools.put(image.imageName, pool);
+        }
+
+        return pool;
+    }
+
+    public interface Launcher {
+        /**
+         * Start a warm slave for the image and add it to the pool.
+         *
+         * @return false if the cloud has no capacity for more slaves
+         */
+        boolean launchWarmSlave(JobValidationResult image);
+    }
+
+    private static class ImagePool {
+        public final JobValidationResult image;
+        public final LinkedList<DockerJobSlave> slaves = newLinkedList();
+        public int requests;
+        public int claimed;
+        public double demand;
+
+        public ImagePool(JobValidationResult image) {
+            this.image = image;
+        }
+    }
+}
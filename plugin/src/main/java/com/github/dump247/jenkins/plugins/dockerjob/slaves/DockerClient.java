@@ -0,0 +1,296 @@
+package com.github.dump247.jenkins.plugins.dockerjob.slaves;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import net.sf.json.JSON;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import net.sf.json.JSONSerializer;
+import org.joda.time.Duration;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newHashMap;
+import static com.google.common.collect.Sets.newTreeSet;
+import static java.lang.String.format;
+import static java.util.logging.Level.FINER;
+
+/**
+ * Client for the docker engine API of a slave host.
+ * <p/>
+ * The API listens on a unix socket, which can not be forwarded over SSH by the plugin. Requests
+ * are sent on an SSH channel to the launch daemon on the host, which relays them to the socket
+ * (see <code>launch_daemon.py</code>).
+ * <p/>
+ * Requests are batched on one HTTP/1.1 connection: all requests of a batch are written before
+ * any response is read, so a batch takes one round trip to the host.
+ */
+public class DockerClient {
+    private static final Logger LOG = Logger.getLogger(DockerClient.class.getName());
+
+    /**
+     * API version used for requests, the same version <code>create_slave.py</code> uses.
+     */
+    public static final String API_VERSION = "v1.15";
+
+    /**
+     * Maximum time for a batch of requests, from the time the stream to the launch daemon is open
+     * until the last response is read.
+     */
+    public static final Duration REQUEST_TIMEOUT = Duration.standardSeconds(10);
+
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder()
+                    .setNameFormat("docker-api-watchdog-%d")
+                    .setDaemon(true)
+                    .build());
+
+    private final SshClient _sshClient;
+
+    public DockerClient(SshClient sshClient) {
+        _sshClient = sshClient;
+    }
+
+    /**
+     * List the names of the docker images that are available on the host, by tag and by digest.
+     * Images with no tag or digest are not listed.
+     */
+    public Set<String> listImages() throws IOException {
+        SortedSet<String> names = newTreeSet();
+
+        for (Object image : (JSONArray) get("/images/json").get(0)) {
+            addNames(names, ((JSONObject) image).opt("RepoTags"));
+            addNames(names, ((JSONObject) image).opt("RepoDigests"));
+        }
+
+        return ImmutableSet.copyOf(names);
+    }
+
+    private static void addNames(Set<String> names, Object values) {
+        if (values instanceof JSONArray) {
+            for (Object value : (JSONArray) values) {
+                String name = String.valueOf(value);
+
+                if (!name.startsWith("<none>")) {
+                    names.add(name);
+                }
+            }
+        }
+    }
+
+    /**
+     * Send a batch of GET requests.
+     *
+     * @param paths request paths, relative to the API version
+     * @return parsed JSON response of each request, in the same order as the paths
+     * @throws DockerException if any request returns an error status
+     * @throws HostTimeoutException if the batch did not complete within {@link #REQUEST_TIMEOUT}
+     */
+    public List<JSON> get(String... paths) throws IOException {
+        final SshClient.SshStream stream = _sshClient.openStream("127.0.0.1", SlaveClient.LAUNCH_DAEMON_PORT);
+        final AtomicBoolean timedOut = new AtomicBoolean();
+
+        // Reads on the stream can not time out, so close the stream to end a request that hangs
+        ScheduledFuture<?> watchdog = WATCHDOG.schedule(new Runnable() {
+            @Override
+            public void run() {
+                timedOut.set(true);
+                stream.close();
+            }
+        }, REQUEST_TIMEOUT.getMillis(), TimeUnit.MILLISECONDS);
+
+        try {
+            List<JSON> responses = send(stream, paths);
+
+            // A response that is read to the end of the stream may have been cut short
+            if (timedOut.get()) {
+                throw timeout(paths);
+            }
+
+            return responses;
+        } catch (IOException ex) {
+            if (timedOut.get()) {
+                throw timeout(paths);
+            }
+
+            throw ex;
+        } catch (RuntimeException ex) {
+            if (timedOut.get()) {
+                throw timeout(paths);
+            }
+
+            throw ex;
+        } finally {
+            watchdog.cancel(false);
+            stream.close();
+        }
+    }
+
+    private HostTimeoutException timeout(String[] paths) {
+        return new HostTimeoutException(format("Docker API request timed out on %s after %s: %s",
+                _sshClient.getHost(), REQUEST_TIMEOUT, Arrays.toString(paths)));
+    }
+
+    private List<JSON> send(SshClient.SshStream stream, String[] paths) throws IOException {
+        OutputStream output = new BufferedOutputStream(stream.getOutputStream());
+        InputStream input = new BufferedInputStream(stream.getInputStream());
+
+        output.write("{\"proxy\": \"docker\"}\n".getBytes(Charsets.UTF_8));
+
+        for (int i = 0; i < paths.length; i++) {
+            // Ask docker to close the connection after the last response
+            output.write(format("GET /%s%s HTTP/1.1\r\nHost: docker\r\n%s\r\n",
+                    API_VERSION, paths[i], i == paths.length - 1 ? "Connection: close\r\n" : "").getBytes(Charsets.UTF_8));
+        }
+
+        output.flush();
+
+        String reply = readLine(input);
+
+        if (reply == null || !reply.equals("S")) {
+            throw new IOException(format("Docker API is not available on %s: %s", _sshClient.getHost(),
+                    reply == null ? "connection closed" : reply.replaceFirst("^E ", "")));
+        }
+
+        List<JSON> responses = newArrayList();
+
+        for (String path : paths) {
+            responses.add(readResponse(input, path));
+            LOG.log(FINER, "Docker API response: host={0} path={1}", new Object[]{_sshClient.getHost(), path});
+        }
+
+        return responses;
+    }
+
+    /**
+     * Read one HTTP response of a batch, leaving the stream at the start of the next response.
+     *
+     * @param path request path, for errors
+     * @return parsed JSON body, or an empty object if the response has no body
+     * @throws DockerException if the response has an error status
+     */
+    static JSON readResponse(InputStream input, String path) throws IOException {
+        String statusLine = readLine(input);
+
+        if (statusLine == null) {
+            throw new EOFException("Docker API closed the connection: path=" + path);
+        }
+
+        String[] status = statusLine.split(" ", 3);
+
+        if (status.length < 2 || !status[0].startsWith("HTTP/") || !status[1].matches("^[0-9]{3}$")) {
+            throw new IOException("Invalid docker API response: " + statusLine);
+        }
+
+        int statusCode = Integer.parseInt(status[1]);
+        Map<String, String> headers = newHashMap();
+        String line;
+
+        while ((line = readLine(input)) != null && line.length() > 0) {
+            int separator = line.indexOf(':');
+
+            if (separator > 0) {
+                headers.put(line.substring(0, separator).trim().toLowerCase(), line.substring(separator + 1).trim());
+            }
+        }
+
+        byte[] body;
+
+        if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+            body = readChunked(input);
+        } else if (headers.containsKey("content-length")) {
+            body = new byte[Integer.parseInt(headers.get("content-length"))];
+            ByteStreams.readFully(input, body);
+        } else if (statusCode == 204 || statusCode == 304) {
+            body = new byte[0];
+        } else {
+            body = ByteStreams.toByteArray(input);
+        }
+
+        String text = new String(body, Charsets.UTF_8).trim();
+
+        if (statusCode >= 400) {
+            throw new DockerException(path, statusCode, text);
+        }
+
+        return text.length() == 0 ? new JSONObject() : JSONSerializer.toJSON(text);
+    }
+
+    /**
+     * Read a body with chunked transfer encoding, up to and including the blank line that ends it.
+     */
+    static byte[] readChunked(InputStream input) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        while (true) {
+            String sizeLine = readLine(input);
+
+            if (sizeLine == null) {
+                throw new EOFException("Docker API response ended in a chunk header");
+            }
+
+            int size = Integer.parseInt(sizeLine.split(";", 2)[0].trim(), 16);
+
+            if (size == 0) {
+                // Skip trailers up to the blank line that ends the response
+                String trailer;
+
+                do {
+                    trailer = readLine(input);
+                } while (trailer != null && trailer.length() > 0);
+
+                return body.toByteArray();
+            }
+
+            byte[] chunk = new byte[size];
+            ByteStreams.readFully(input, chunk);
+            body.write(chunk);
+            readLine(input);
+        }
+    }
+
+    /**
+     * Read a line terminated by LF or CRLF, without the terminator.
+     *
+     * @return line or null if the stream ended before any data was read
+     */
+    private static String readLine(InputStream input) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int value;
+
+        while ((value = input.read()) >= 0) {
+            if (value == '\n') {
+                break;
+            }
+
+            line.write(value);
+        }
+
+        if (value < 0 && line.size() == 0) {
+            return null;
+        }
+
+        String text = line.toString("UTF-8");
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+}
@@ -0,0 +1,33 @@
+package com.github.dump247.jenkins.plugins.dockerjob.slaves;
+
+import java.io.IOException;
+
+import static java.lang.String.format;
+
+/**
+ * Error response from the docker engine API of a host.
+ */
+public class DockerException extends IOException {
+    private final String _path;
+    private final int _statusCode;
+
+    public DockerException(String path, int statusCode, String message) {
+        super(format("Docker API error: path=%s status=%d message=%s", path, statusCode, message));
+        _path = path;
+        _statusCode = statusCode;
+    }
+
+    /**
+     * Path of the request that failed, relative to the API version.
+     */
+    public String getPath() {
+        return _path;
+    }
+
+    /**
+     * HTTP status code of the response, for example 404 if the image or container does not exist.
+     */
+    public int getStatusCode() {
+        return _statusCode;
+    }
+}
@@ -0,0 +1,325 @@
+package com.github.dump247.jenkins.plugins.dockerjob.slaves;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CharStreams;
+import com.trilead.ssh2.ChannelCondition;
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.Session;
+import org.joda.time.Duration;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+import static com.google.common.base.Objects.firstNonNull;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.Sets.newHashSet;
+import static java.lang.String.format;
+import static java.util.logging.Level.FINE;
+
+/**
+ * Uploads files to a host over an SSH connection.
+ * <p/>
+ * {@link com.trilead.ssh2.SFTPv3Client} waits for the response to each write request before
+ * sending the next one, so throughput is bounded by the round trip time to the host. This
+ * uploader speaks the SFTP protocol directly and keeps up to {@link #getWindow()} write requests
+ * outstanding at once.
+ * <p/>
+ * In compressed mode, the file is instead streamed through <code>gzip -dc</code> in a single exec
+ * channel, which is faster for compressible content on slow links.
+ */
+public class FileUploader {
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    public static final int DEFAULT_WINDOW = 16;
+
+    /**
+     * Uploader with the default chunk size and window, and no compression.
+     */
+    public static final FileUploader DEFAULT = new FileUploader(DEFAULT_CHUNK_SIZE, DEFAULT_WINDOW, false);
+
+    /**
+     * Largest chunk size that common SFTP servers accept in a single write request.
+     */
+    private static final int MAX_CHUNK_SIZE = 255 * 1024;
+    private static final Duration COMPRESSED_UPLOAD_TIMEOUT = Duration.standardMinutes(5);
+    private static final Logger LOG = Logger.getLogger(FileUploader.class.getName());
+
+    private static final int SFTP_VERSION = 3;
+    private static final int SSH_FXP_INIT = 1;
+    private static final int SSH_FXP_VERSION = 2;
+    private static final int SSH_FXP_OPEN = 3;
+    private static final int SSH_FXP_CLOSE = 4;
+    private static final int SSH_FXP_WRITE = 6;
+    private static final int SSH_FXP_STATUS = 101;
+    private static final int SSH_FXP_HANDLE = 102;
+    private static final int SSH_FXF_WRITE = 0x02;
+    private static final int SSH_FXF_CREAT = 0x08;
+    private static final int SSH_FXF_TRUNC = 0x10;
+    private static final int SSH_FX_OK = 0;
+
+    private final int _chunkSize;
+    private final int _window;
+    private final boolean _compress;
+
+    /**
+     * @param chunkSize number of bytes sent in each SFTP write request
+     * @param window    maximum number of write requests waiting for a response
+     * @param compress  stream the file through gzip in an exec channel instead of using SFTP
+     */
+    public FileUploader(int chunkSize, int window, boolean compress) {
+        checkArgument(chunkSize > 0 && chunkSize <= MAX_CHUNK_SIZE, "chunkSize must be between 1 and %s", MAX_CHUNK_SIZE);
+        checkArgument(window > 0, "window must be greater than 0");
+
+        _chunkSize = chunkSize;
+        _window = window;
+        _compress = compress;
+    }
+
+    public int getChunkSize() {
+        return _chunkSize;
+    }
+
+    public int getWindow() {
+        return _window;
+    }
+
+    public boolean isCompress() {
+        return _compress;
+    }
+
+    /**
+     * Write content to a file on the host, replacing the file if it exists.
+     *
+     * @return number of bytes written
+     */
+    public long upload(Connection connection, ByteSource content, String path) throws IOException {
+        long startNanos = System.nanoTime();
+        InputStream stream = content.openStream();
+
+        try {
+            long size = _compress
+                    ? writeCompressed(connection, stream, path)
+                    : writePipelined(connection, stream, path);
+
+            LOG.log(FINE, "Uploaded {0}: bytes={1} compressed={2} time={3}ms",
+                    new Object[]{path, size, _compress, (System.nanoTime() - startNanos) / 1000000});
+            return size;
+        } finally {
+            stream.close();
+        }
+    }
+
+    private long writeCompressed(Connection connection, InputStream content, String path) throws IOException {
+        Session session = connection.openSession();
+
+        try {
+            session.execCommand("gzip -dc > " + Ssh.quoteArgument(path));
+
+            OutputStream out = new GZIPOutputStream(session.getStdin(), _chunkSize);
+            long size = ByteStreams.copy(content, out);
+            out.close();
+
+            try {
+                session.waitForCondition(ChannelCondition.EXIT_STATUS, COMPRESSED_UPLOAD_TIMEOUT.getMillis());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+
+            int exitCode = firstNonNull(session.getExitStatus(), -1000);
+
+            if (exitCode != 0) {
+                String error = CharStreams.toString(new InputStreamReader(session.getStderr(), Charsets.UTF_8));
+                throw new IOException(format("Compressed upload of %s failed (exit code %d): %s", path, exitCode, error.trim()));
+            }
+
+            return size;
+        } finally {
+            session.close();
+        }
+    }
+
+    private long writePipelined(Connection connection, InputStream content, String path) throws IOException {
+        Session session = connection.openSession();
+
+        try {
+            session.startSubSystem("sftp");
+            return writePipelined(session.getStdin(), session.getStdout(), content, path);
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Write content to a file with an SFTP server that is already started.
+     *
+     * @param serverInput  stream of requests to the server
+     * @param serverOutput stream of responses from the server
+     * @return number of bytes written
+     */
+    long writePipelined(OutputStream serverInput, InputStream serverOutput, InputStream content, String path) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(serverInput, _chunkSize + 1024));
+        DataInputStream in = new DataInputStream(new BufferedInputStream(serverOutput));
+        int requestId = 0;
+
+        // Negotiate the protocol version
+        out.writeInt(5);
+        out.writeByte(SSH_FXP_INIT);
+        out.writeInt(SFTP_VERSION);
+        out.flush();
+        readPacket(in, SSH_FXP_VERSION);
+
+        // Open the file
+        byte[] pathBytes = path.getBytes(Charsets.UTF_8);
+        int openId = requestId++;
+        out.writeInt(1 + 4 + 4 + pathBytes.length + 4 + 4);
+        out.writeByte(SSH_FXP_OPEN);
+        out.writeInt(openId);
+        out.writeInt(pathBytes.length);
+        out.write(pathBytes);
+        out.writeInt(SSH_FXF_WRITE | SSH_FXF_CREAT | SSH_FXF_TRUNC);
+        out.writeInt(0); // No attributes
+        out.flush();
+        byte[] handle = readHandle(in, openId, path);
+
+        // Send write requests without waiting for each response, up to the window size
+        Set<Integer> outstanding = newHashSet();
+        byte[] buffer = new byte[_chunkSize];
+        long offset = 0;
+        int read;
+
+        while ((read = ByteStreams.read(content, buffer, 0, buffer.length)) > 0) {
+            if (outstanding.size() >= _window) {
+                out.flush();
+                readWriteStatus(in, outstanding, path);
+            }
+
+            int writeId = requestId++;
+            out.writeInt(1 + 4 + 4 + handle.length + 8 + 4 + read);
+            out.writeByte(SSH_FXP_WRITE);
+            out.writeInt(writeId);
+            out.writeInt(handle.length);
+            out.write(handle);
+            out.writeLong(offset);
+            out.writeInt(read);
+            out.write(buffer, 0, read);
+            outstanding.add(writeId);
+            offset += read;
+        }
+
+        out.flush();
+
+        while (!outstanding.isEmpty()) {
+            readWriteStatus(in, outstanding, path);
+        }
+
+        // Close the file
+        int closeId = requestId;
+        out.writeInt(1 + 4 + 4 + handle.length);
+        out.writeByte(SSH_FXP_CLOSE);
+        out.writeInt(closeId);
+        out.writeInt(handle.length);
+        out.write(handle);
+        out.flush();
+        checkStatus(readPacket(in, SSH_FXP_STATUS), closeId, path);
+
+        return offset;
+    }
+
+    private static byte[] readHandle(DataInputStream in, int requestId, String path) throws IOException {
+        Packet packet = readPacket(in, -1);
+
+        if (packet.type == SSH_FXP_STATUS) {
+            checkStatus(packet, requestId, path);
+            throw new IOException(format("Unable to open %s: unexpected status", path));
+        } else if (packet.type != SSH_FXP_HANDLE) {
+            throw new IOException(format("Unable to open %s: unexpected SFTP response %d", path, packet.type));
+        }
+
+        if (packet.data.readInt() != requestId) {
+            throw new IOException(format("Unable to open %s: mismatched SFTP response", path));
+        }
+
+        byte[] handle = new byte[packet.data.readInt()];
+        packet.data.readFully(handle);
+        return handle;
+    }
+
+    private static void readWriteStatus(DataInputStream in, Set<Integer> outstanding, String path) throws IOException {
+        Packet packet = readPacket(in, SSH_FXP_STATUS);
+        int id = checkStatus(packet, null, path);
+
+        if (!outstanding.remove(id)) {
+            throw new IOException(format("Error writing %s: unexpected SFTP response id %d", path, id));
+        }
+    }
+
+    /**
+     * Check that a status response indicates success.
+     *
+     * @param expectedId request id the response must be for, or null to accept any id
+     * @return request id of the response
+     */
+    private static int checkStatus(Packet packet, Integer expectedId, String path) throws IOException {
+        int id = packet.data.readInt();
+        int code = packet.data.readInt();
+
+        if (expectedId != null && id != expectedId) {
+            throw new IOException(format("Error writing %s: unexpected SFTP response id %d", path, id));
+        }
+
+        if (code != SSH_FX_OK) {
+            String message = "";
+
+            try {
+                byte[] messageBytes = new byte[packet.data.readInt()];
+                packet.data.readFully(messageBytes);
+                message = new String(messageBytes, Charsets.UTF_8);
+            } catch (IOException ex) {
+                // Message is optional in some server implementations
+            }
+
+            throw new IOException(format("Error writing %s: %s (SFTP status %d)", path, message, code));
+        }
+
+        return id;
+    }
+
+    private static Packet readPacket(DataInputStream in, int expectedType) throws IOException {
+        int length = in.readInt();
+
+        if (length < 1 || length > MAX_CHUNK_SIZE + 1024) {
+            throw new IOException(format("Invalid SFTP packet length: %d", length));
+        }
+
+        int type = in.readUnsignedByte();
+        byte[] data = new byte[length - 1];
+        in.readFully(data);
+
+        if (expectedType >= 0 && type != expectedType) {
+            throw new IOException(format("Unexpected SFTP response: expected=%d actual=%d", expectedType, type));
+        }
+
+        return new Packet(type, new DataInputStream(new ByteArrayInputStream(data)));
+    }
+
+    private static final class Packet {
+        public final int type;
+        public final DataInputStream data;
+
+        public Packet(int type, DataInputStream data) {
+            this.type = type;
+            this.data = data;
+        }
+    }
+}
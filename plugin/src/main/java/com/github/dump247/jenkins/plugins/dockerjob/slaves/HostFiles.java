@@ -0,0 +1,128 @@
+package com.github.dump247.jenkins.plugins.dockerjob.slaves;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Resources;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.collect.Maps.newHashMap;
+
+/**
+ * Files that are installed on each slave host, identified by the SHA-256 hash of their content.
+ * <p/>
+ * A manifest of the installed hashes is kept on the host (see {@link #MANIFEST_PATH}) so only
+ * files that have changed need to be uploaded when connecting to a host.
+ */
+public class HostFiles {
+    public static final String INSTALL_DIR = "/var/lib/jenkins-docker";
+    public static final String SLAVE_DIR = INSTALL_DIR + "/slave";
+    public static final String MANIFEST_PATH = INSTALL_DIR + "/manifest";
+
+    private final ImmutableSortedMap<String, ByteSource> _files;
+    private final ImmutableSortedMap<String, String> _hashes;
+
+    private HostFiles(Map<String, ByteSource> files) throws IOException {
+        ImmutableSortedMap.Builder<String, String> hashes = ImmutableSortedMap.naturalOrder();
+
+        for (Map.Entry<String, ByteSource> file : files.entrySet()) {
+            hashes.put(file.getKey(), file.getValue().hash(Hashing.sha256()).toString());
+        }
+
+        _files = ImmutableSortedMap.copyOf(files);
+        _hashes = hashes.build();
+    }
+
+    /**
+     * Load the files to install on a host.
+     *
+     * @param slaveJarUrl     location of the Jenkins slave jar
+     * @param slaveInitScript script run in each job container before the slave starts, may be empty
+     */
+    public static HostFiles create(URL slaveJarUrl, String slaveInitScript) throws IOException {
+        checkNotNull(slaveJarUrl);
+        checkNotNull(slaveInitScript);
+
+        ImmutableMap.Builder<String, ByteSource> files = ImmutableMap.builder();
+        files.put(INSTALL_DIR + "/init_host.sh", resource("init_host.sh"));
+        files.put(INSTALL_DIR + "/create_slave.py", resource("create_slave.py"));
+        files.put(INSTALL_DIR + "/launch_daemon.py", resource("launch_daemon.py"));
+        files.put(INSTALL_DIR + "/list_images.py", resource("list_images.py"));
+        files.put(SLAVE_DIR + "/launch_slave.sh", resource("launch_slave.sh"));
+
+        // Read the jar once, rather than once for the hash and again for each upload
+        files.put(SLAVE_DIR + "/slave.jar", ByteStreams.asByteSource(Resources.toByteArray(slaveJarUrl)));
+
+        if (slaveInitScript.trim().length() > 0) {
+            if (slaveInitScript.charAt(slaveInitScript.length() - 1) != '\n') {
+                slaveInitScript = slaveInitScript + "\n";
+            }
+
+            files.put(SLAVE_DIR + "/init_slave.sh", ByteStreams.asByteSource(slaveInitScript.getBytes(Charsets.UTF_8)));
+        }
+
+        return new HostFiles(files.build());
+    }
+
+    private static ByteSource resource(String name) {
+        return Resources.asByteSource(Resources.getResource(HostFiles.class, name));
+    }
+
+    /**
+     * Content hash of each file, keyed by the absolute path of the file on the host.
+     */
+    public Map<String, String> getHashes() {
+        return _hashes;
+    }
+
+    public ByteSource getContent(String path) {
+        return checkNotNull(_files.get(path), "Unknown host file: %s", path);
+    }
+
+    /**
+     * Content of the manifest file for this set of files.
+     * <p/>
+     * The format is the same as the output of <code>sha256sum</code>.
+     */
+    public String getManifest() {
+        StringBuilder manifest = new StringBuilder();
+
+        for (Map.Entry<String, String> hash : _hashes.entrySet()) {
+            manifest.append(hash.getValue()).append("  ").append(hash.getKey()).append('\n');
+        }
+
+        return manifest.toString();
+    }
+
+    /**
+     * Parse the content of a manifest file into a map of path to content hash.
+     * <p/>
+     * Malformed lines are ignored, which causes the associated file to be uploaded again. Paths
+     * that are not absolute or that have a <code>..</code> segment are also ignored, so a tampered
+     * manifest can not name files outside of the install directory.
+     */
+    public static Map<String, String> parseManifest(String manifest) {
+        Map<String, String> hashes = newHashMap();
+
+        for (String line : manifest.split("\n")) {
+            String[] parts = line.trim().split("\\s+", 2);
+
+            if (parts.length == 2 && parts[0].matches("^[0-9a-f]{64}$") && isSafePath(parts[1])) {
+                hashes.put(parts[1], parts[0]);
+            }
+        }
+
+        return hashes;
+    }
+
+    private static boolean isSafePath(String path) {
+        return path.startsWith("/") && !(path + "/").contains("/../");
+    }
+}
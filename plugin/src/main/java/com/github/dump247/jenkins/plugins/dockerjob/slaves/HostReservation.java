@@ -0,0 +1,49 @@
+package com.github.dump247.jenkins.plugins.dockerjob.slaves;
+
+import com.google.common.net.HostAndPort;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A slot on a host, held by a slave from the time it is provisioned until it fails to launch or
+ * is terminated.
+ */
+public class HostReservation {
+    private final HostAndPort _host;
+    private final AtomicInteger _hostReservations;
+    private final AtomicBoolean _released = new AtomicBoolean();
+
+    /**
+     * @param host             reserved host
+     * @param hostReservations number of reservations held on the host, decremented on release
+     */
+    public HostReservation(HostAndPort host, AtomicInteger hostReservations) {
+        _host = checkNotNull(host);
+        _hostReservations = checkNotNull(hostReservations);
+    }
+
+    public HostAndPort getHost() {
+        return _host;
+    }
+
+    public boolean isReleased() {
+        return _released.get();
+    }
+
+    /**
+     * Give up the slot on the host. Only the first call has an effect.
+     */
+    public void release() {
+        if (_released.compareAndSet(false, true)) {
+            _hostReservations.decrementAndGet();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return _host.toString();
+    }
+}
@@ -0,0 +1,15 @@
+package com.github.dump247.jenkins.plugins.dockerjob.slaves;
+
+import java.io.IOException;
+
+/**
+ * A request to a host did not complete in time.
+ * <p/>
+ * Only the session or stream used by the request is closed. The connection to the host, and the
+ * slaves running on it, are not affected.
+ */
+public class HostTimeoutException extends IOException {
+    public HostTimeoutException(String message) {
+        super(message);
+    }
+}
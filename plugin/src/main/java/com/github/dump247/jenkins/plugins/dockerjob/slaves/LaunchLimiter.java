@@ -0,0 +1,137 @@
+package com.github.dump247.jenkins.plugins.dockerjob.slaves;
+
+import com.google.common.net.HostAndPort;
+import org.joda.time.Duration;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.lang.String.format;
+
+/**
+ * Limits the number of slaves that are launching on each host at the same time.
+ * <p/>
+ * Launching a slave pulls the image and creates and starts a container, which is expensive for
+ * the docker daemon. Launches beyond the limit wait for a permit in order of arrival.
+ */
+public class LaunchLimiter {
+    private final ConcurrentMap<HostAndPort, Semaphore> _permits = new ConcurrentHashMap<HostAndPort, Semaphore>();
+    private final int _maxLaunches;
+
+    /**
+     * @param maxLaunches maximum number of concurrent launches on each host, 0 for no limit
+     */
+    public LaunchLimiter(int maxLaunches) {
+        checkArgument(maxLaunches >= 0);
+        _maxLaunches = maxLaunches;
+    }
+
+    public boolean isEnabled() {
+        return _maxLaunches > 0;
+    }
+
+    /**
+     * Check if a launch on the host would start without waiting.
+     */
+    public boolean hasFreePermit(HostAndPort host) {
+        return !isEnabled() || getPermits(host).availablePermits() > 0;
+    }
+
+    /**
+     * Take a launch permit for the host if one is free and no launch is waiting.
+     *
+     * @return permit or null if the launch would have to wait
+     */
+    public Permit tryAcquire(HostAndPort host) {
+        if (!isEnabled()) {
+            return new Permit(null);
+        }
+
+        Semaphore permits = getPermits(host);
+
+        // tryAcquire() without a timeout ignores fairness, so use a zero timeout to respect the queue
+        try {
+            return permits.tryAcquire(0, TimeUnit.MILLISECONDS) ? new Permit(permits) : null;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Wait for a launch permit for the host. Waiting launches get permits in order of arrival.
+     *
+     * @throws LaunchPermitTimeoutException if no permit was free within the timeout
+     */
+    public Permit acquire(HostAndPort host, Duration timeout) throws IOException {
+        if (!isEnabled()) {
+            return new Permit(null);
+        }
+
+        Semaphore permits = getPermits(host);
+
+        try {
+            if (!permits.tryAcquire(timeout.getMillis(), TimeUnit.MILLISECONDS)) {
+                throw new LaunchPermitTimeoutException(format("Timed out waiting to launch on %s: waiting=%d", host, permits.getQueueLength()));
+            }
+
+            return new Permit(permits);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting to launch on " + host);
+        }
+    }
+
+    /**
+     * Number of launches waiting for a permit on any host.
+     */
+    public int getQueueLength() {
+        int length = 0;
+
+        for (Semaphore permits : _permits.values()) {
+            length += permits.getQueueLength();
+        }
+
+        return length;
+    }
+
+    private Semaphore getPermits(HostAndPort host) {
+        Semaphore permits = _permits.get(host);
+
+        if (permits == null) {
+            permits = new Semaphore(_maxLaunches, true);
+            Semaphore existing = _permits.putIfAbsent(host, permits);
+            permits = existing == null ? permits : existing;
+        }
+
+        return permits;
+    }
+
+    /**
+     * Permission to launch a slave on a host. Must be released when the slave has connected or
+     * the launch has failed.
+     */
+    public static class Permit {
+        private final Semaphore _permits;
+        private final AtomicBoolean _released = new AtomicBoolean();
+
+        private Permit(Semaphore permits) {
+            _permits = permits;
+        }
+
+        /**
+         * Only the first call has an effect.
+         */
+        public void release() {
+            if (_released.compareAndSet(false, true) && _permits != null) {
+                _permits.release();
+            }
+        }
+    }
+}
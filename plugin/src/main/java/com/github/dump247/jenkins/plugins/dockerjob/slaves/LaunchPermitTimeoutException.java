@@ -0,0 +1,14 @@
+package com.github.dump247.jenkins.plugins.dockerjob.slaves;
+
+import java.io.IOException;
+
+/**
+ * A slave waited too long for a launch permit on a host. See {@link LaunchLimiter}.
+ * <p/>
+ * The host is busy launching other slaves, which does not mean it is unhealthy.
+ */
+public class LaunchPermitTimeoutException extends IOException {
+    public LaunchPermitTimeoutException(String message) {
+        super(message);
+    }
+}
@@ -2,28 +2,37 @@ package com.github.dump247.jenkins.plugins.dockerjob.slaves;
 
 import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
 import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
 import com.google.common.net.HostAndPort;
 import com.google.inject.Provider;
 import com.trilead.ssh2.ChannelCondition;
 import com.trilead.ssh2.Connection;
-import com.trilead.ssh2.SFTPv3Client;
 import com.trilead.ssh2.Session;
+import net.sf.json.util.JSONUtils;
+import org.joda.time.Duration;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.net.URL;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
-import static com.github.dump247.jenkins.plugins.dockerjob.slaves.Sftp.writeFile;
-import static com.github.dump247.jenkins.plugins.dockerjob.slaves.Sftp.writeResource;
-import static com.github.dump247.jenkins.plugins.dockerjob.slaves.Sftp.writeString;
 import static com.github.dump247.jenkins.plugins.dockerjob.slaves.Ssh.communicateSuccess;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -39,15 +48,43 @@ import static org.joda.time.Duration.standardSeconds;
 public class SlaveClient {
     private static final Logger LOG = Logger.getLogger(SlaveClient.class.getName());
 
+    /**
+     * Maximum time to wait for the host initialization script to complete.
+     */
+    public static final Duration INIT_TIMEOUT = standardSeconds(30);
+
+    /**
+     * Maximum time to wait for the host to list its docker images.
+     */
+    public static final Duration LIST_IMAGES_TIMEOUT = standardSeconds(10);
+
+    /**
+     * Loopback port the launch daemon listens on, see <code>launch_daemon.py</code>.
+     */
+    public static final int LAUNCH_DAEMON_PORT = 12113;
+
+    /**
+     * Size of the buffer between the launch daemon output and the launch log reader.
+     */
+    private static final int DAEMON_LOG_BUFFER_SIZE = 64 * 1024;
+
     private final SshClient _sshClient;
+    private final DockerClient _dockerClient;
     private final Map<String, Set<Integer>> _activeJobRunNumbers = new HashMap<String, Set<Integer>>();
 
+    /**
+     * Connection used by an in-progress {@link #initialize}, so {@link #close} can abort it.
+     */
+    private volatile Connection _initializeConnection;
+
     public SlaveClient(HostAndPort host, Provider<StandardUsernameCredentials> credentialsProvider) {
         _sshClient = new SshClient(host, credentialsProvider);
+        _dockerClient = new DockerClient(_sshClient);
     }
 
     public SlaveClient(HostAndPort host, Provider<StandardUsernameCredentials> credentialsProvider, int maxSessions) {
         _sshClient = new SshClient(host, credentialsProvider, maxSessions);
+        _dockerClient = new DockerClient(_sshClient);
     }
 
     public HostAndPort getHost() {
@@ -62,54 +99,178 @@ public class SlaveClient {
         _sshClient.ping();
     }
 
+    /**
+     * Client for the docker engine API of the host. Requires the launch daemon on the host.
+     */
+    public DockerClient getDockerClient() {
+        return _dockerClient;
+    }
+
+    /**
+     * List the names of the docker images that are available on the host, by tag and by digest.
+     * <p/>
+     * This also tests the connection to the host, so it can be used in place of {@link #ping()}.
+     * <p/>
+     * The images are listed with the docker engine API. If the API can not be reached through the
+     * launch daemon, <code>list_images.py</code> is run on the host instead.
+     */
+    public Set<String> listImages() throws IOException {
+        try {
+            return _dockerClient.listImages();
+        } catch (DockerException ex) {
+            throw ex;
+        } catch (HostTimeoutException ex) {
+            // The host is slow to respond, the script would not be faster
+            throw ex;
+        } catch (IOException ex) {
+            LOG.log(FINE, "Docker API not available on {0}, running list_images.py: {1}", new Object[]{getHost(), ex.getMessage()});
+        }
+
+        SshClient.SshSession session = _sshClient.createSession();
+
+        try {
+            long deadline = System.currentTimeMillis() + LIST_IMAGES_TIMEOUT.getMillis();
+            session.execCommand(Ssh.quoteCommand("python3", HostFiles.INSTALL_DIR + "/list_images.py"));
+
+            // Only read when data is available, so a hung script can not block past the deadline
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            InputStream stdout = session.getStdout();
+            byte[] buffer = new byte[8192];
+            int read = 0;
+
+            while (read >= 0) {
+                int conditions = session.waitForCondition(ChannelCondition.STDOUT_DATA | ChannelCondition.EOF | ChannelCondition.CLOSED,
+                        remainingMillis(deadline), TimeUnit.MILLISECONDS);
+
+                if ((conditions & ChannelCondition.TIMEOUT) != 0) {
+                    throw new HostTimeoutException(format("Timed out listing images on %s", getHost()));
+                }
+
+                read = stdout.read(buffer);
+
+                if (read > 0) {
+                    output.write(buffer, 0, read);
+                }
+            }
+
+            Optional<Integer> exitStatus = session.waitForExit(remainingMillis(deadline), TimeUnit.MILLISECONDS);
+
+            if (!exitStatus.isPresent()) {
+                throw new HostTimeoutException(format("Timed out listing images on %s", getHost()));
+            }
+
+            int exitCode = exitStatus.get();
+
+            if (exitCode != 0) {
+                throw new IOException(format("Error listing images on %s (exit code %d)", getHost(), exitCode));
+            }
+
+            return ImmutableSet.copyOf(Splitter.on('\n').trimResults().omitEmptyStrings().split(output.toString("UTF-8")));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted listing images on " + getHost());
+        } finally {
+            session.close();
+        }
+    }
+
+    private static long remainingMillis(long deadline) {
+        // A timeout of 0 waits forever
+        return Math.max(1, deadline - System.currentTimeMillis());
+    }
+
     public void close() {
+        Connection initializeConnection = _initializeConnection;
+
+        if (initializeConnection != null) {
+            initializeConnection.close();
+        }
+
         _sshClient.close();
     }
 
-    public String initialize(URL slaveJarUrl, String slaveInitScript) throws IOException {
+    /**
+     * Install the slave files on the host and run the host initialization script.
+     * <p/>
+     * Only files whose content hash differs from the manifest on the host are uploaded. Each file
+     * is uploaded to a temporary path and renamed into place, so containers that are starting
+     * never see a partially written file.
+     *
+     * @param startLaunchDaemon start the launch daemon on the host, or stop it if it is running
+     * @return output of the initialization script, which describes the host
+     */
+    public String initialize(HostFiles files, FileUploader uploader, boolean startLaunchDaemon) throws IOException {
         Connection connection = null;
-        SFTPv3Client ftp = null;
 
         LOG.log(FINE, "Initializing {0}", getHost());
 
         try {
             connection = _sshClient.connect();
-            ftp = new SFTPv3Client(connection);
+            _initializeConnection = connection;
 
-            writeResource(ftp, getClass(), "init_host.sh", "/var/lib/jenkins-docker/init_host.sh");
-
-            // Run script to initialize the host (create directories, check for dependencies, etc)
-            String initializeResult = communicateSuccess(
+            // Create the install directories and read the manifest of installed files in one round trip
+            Map<String, String> installed = HostFiles.parseManifest(communicateSuccess(
                     connection,
-                    standardSeconds(1),
-                    "/bin/bash", "/var/lib/jenkins-docker/init_host.sh");
+                    INIT_TIMEOUT,
+                    "/bin/sh", "-c", format("mkdir -p %s && cat %s 2>/dev/null || true",
+                            Ssh.quoteArgument(HostFiles.SLAVE_DIR), Ssh.quoteArgument(HostFiles.MANIFEST_PATH))));
 
-            // Upload slave files
-            writeResource(ftp, getClass(), "create_slave.py", "/var/lib/jenkins-docker/create_slave.py");
-            writeResource(ftp, getClass(), "launch_slave.sh", "/var/lib/jenkins-docker/slave/launch_slave.sh");
-            writeFile(ftp, slaveJarUrl.openStream(), "/var/lib/jenkins-docker/slave/slave.jar");
+            List<String> install = newArrayList();
 
-            if (slaveInitScript.trim().length() > 0) {
-                if (slaveInitScript.charAt(slaveInitScript.length() - 1) != '\n') {
-                    slaveInitScript = slaveInitScript + "\n";
+            for (Map.Entry<String, String> file : files.getHashes().entrySet()) {
+                if (!file.getValue().equals(installed.get(file.getKey()))) {
+                    LOG.log(FINER, "Uploading {0} to {1}", new Object[]{file.getKey(), getHost()});
+                    uploader.upload(connection, files.getContent(file.getKey()), file.getKey() + ".tmp");
+                    install.add(format("mv -f %s %s", Ssh.quoteArgument(file.getKey() + ".tmp"), Ssh.quoteArgument(file.getKey())));
                 }
+            }
 
-                writeString(ftp, slaveInitScript, Charsets.UTF_8, "/var/lib/jenkins-docker/slave/init_slave.sh");
+            for (String path : installed.keySet()) {
+                if (!files.getHashes().containsKey(path) && path.startsWith(HostFiles.INSTALL_DIR + "/")) {
+                    install.add(format("rm -f %s", Ssh.quoteArgument(path)));
+                }
             }
 
-            return initializeResult;
-        } finally {
-            if (ftp != null) {
-                ftp.close();
+            if (install.size() > 0) {
+                uploader.upload(connection, ByteStreams.asByteSource(files.getManifest().getBytes(Charsets.UTF_8)), HostFiles.MANIFEST_PATH + ".tmp");
+                install.add(format("mv -f %s %s", Ssh.quoteArgument(HostFiles.MANIFEST_PATH + ".tmp"), Ssh.quoteArgument(HostFiles.MANIFEST_PATH)));
             }
 
+            LOG.log(FINE, "Host files changed: host={0} changed={1}", new Object[]{getHost(), install.size()});
+
+            // Move the files into place and run the script to initialize the host (check for
+            // dependencies, write properties, etc)
+            install.add(Ssh.quoteCommand("exec", "/bin/bash", HostFiles.INSTALL_DIR + "/init_host.sh",
+                    startLaunchDaemon ? "--launch-daemon" : "--no-launch-daemon"));
+
+            return communicateSuccess(
+                    connection,
+                    INIT_TIMEOUT,
+                    "/bin/sh", "-c", Joiner.on(" && ").join(install));
+        } finally {
             if (connection != null) {
+                _initializeConnection = null;
                 connection.close();
             }
         }
     }
 
     public SlaveConnection createSlave(SlaveOptions options) throws IOException {
+        return createSlave(options, false);
+    }
+
+    /**
+     * Start a slave container on the host.
+     * <p/>
+     * The container is started by the launch daemon on the host, if requested and the daemon is
+     * running. The daemon keeps its docker connection and recently pulled images between launches
+     * and the request is sent on an SSH channel of an existing connection, so no process is
+     * started on the host for the launch. Otherwise <code>create_slave.py</code> is run for the
+     * launch.
+     *
+     * @param useLaunchDaemon start the container with the launch daemon if it is running
+     */
+    public SlaveConnection createSlave(SlaveOptions options, boolean useLaunchDaemon) throws IOException {
         String runName;
         int runNumber;
 
@@ -129,30 +290,57 @@ public class SlaveClient {
             runName = options.getName() + "-" + runNumber;
         }
 
-        List<String> command = newArrayList("python3", "/var/lib/jenkins-docker/create_slave.py",
+        List<String> args = newArrayList(
                 "--name", runName,
                 "--image", options.getImage());
 
         if (options.isCleanEnvironment()) {
-            command.add("--clean");
+            args.add("--clean");
         }
 
         for (Map.Entry<String, String> env : options.getEnvironment().entrySet()) {
-            command.add("-e");
-            command.add(format("%s=%s", env.getKey(), env.getValue()));
+            args.add("-e");
+            args.add(format("%s=%s", env.getKey(), env.getValue()));
         }
 
         for (DirectoryMapping dir : options.getDirectoryMappings()) {
-            command.add("-v");
-            command.add(format("%s:%s:%s", dir.getHostPath(), dir.getContainerPath(), dir.getAccess().value()));
+            args.add("-v");
+            args.add(format("%s:%s:%s", dir.getHostPath(), dir.getContainerPath(), dir.getAccess().value()));
         }
 
+        if (options.isDirectConnection()) {
+            // The secret is sent separately so it does not show up in the process list
+            args.add("--direct");
+            args.add(options.getMasterUrl());
+            args.add("--slave-name");
+            args.add(options.getSlaveName());
+        }
+
+        if (useLaunchDaemon) {
+            try {
+                return launchWithDaemon(options, args, runNumber);
+            } catch (IOException ex) {
+                LOG.log(FINE, "Launch daemon not available on {0}, running create_slave.py: {1}", new Object[]{getHost(), ex.getMessage()});
+            }
+        }
+
+        List<String> command = newArrayList("python3", HostFiles.INSTALL_DIR + "/create_slave.py");
+        command.addAll(args);
+
         LOG.log(FINER, "Running: {0}", command);
         String commandString = Ssh.quoteCommand(command);
-        SlaveConnection connection = new SlaveConnection(_sshClient.createSession(), options.getName(), runNumber);
+        SshClient.SshSession session = _sshClient.createSession();
+        SlaveConnection connection = new SlaveConnection(session, session.getStdout(), session.getStdin(), session.getStderr(), options.getName(), runNumber);
 
         try {
-            connection._session.execCommand(commandString);
+            session.execCommand(commandString);
+
+            if (options.isDirectConnection()) {
+                OutputStream stdin = connection.getInput();
+                stdin.write((options.getSlaveSecret() + "\n").getBytes(Charsets.UTF_8));
+                stdin.flush();
+            }
+
             return connection;
         } catch (IOException ex) {
             connection.close();
@@ -160,28 +348,168 @@ public class SlaveClient {
         }
     }
 
+    private SlaveConnection launchWithDaemon(SlaveOptions options, List<String> args, int runNumber) throws IOException {
+        LOG.log(FINER, "Launching with daemon: {0}", args);
+        SshClient.SshStream stream = _sshClient.openStream("127.0.0.1", LAUNCH_DAEMON_PORT);
+
+        try {
+            // Quote each value, JSONObject would parse values that look like JSON
+            List<String> quotedArgs = newArrayList();
+
+            for (String arg : args) {
+                quotedArgs.add(JSONUtils.quote(arg));
+            }
+
+            String request = format("{\"args\": [%s], \"secret\": %s}\n",
+                    Joiner.on(", ").join(quotedArgs),
+                    options.isDirectConnection() ? JSONUtils.quote(options.getSlaveSecret()) : "null");
+
+            OutputStream input = stream.getOutputStream();
+            input.write(request.getBytes(Charsets.UTF_8));
+            input.flush();
+
+            PipedInputStream log = new PipedInputStream(DAEMON_LOG_BUFFER_SIZE);
+            DaemonOutput output = new DaemonOutput(stream.getInputStream(), new PipedOutputStream(log));
+            return new SlaveConnection(stream, output, input, log, options.getName(), runNumber);
+        } catch (IOException ex) {
+            stream.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Output of a launch by the launch daemon.
+     * <p/>
+     * The daemon writes progress lines until the container starts, see <code>launch_daemon.py</code>.
+     * The first read consumes the progress lines and copies their messages to the launch log. The
+     * log ends once the container starts. If the launch fails, the output ends without any data,
+     * the same as when <code>create_slave.py</code> exits.
+     */
+    private static class DaemonOutput extends FilterInputStream {
+        private final OutputStream _log;
+        private boolean _started;
+        private boolean _ended;
+
+        public DaemonOutput(InputStream in, OutputStream log) {
+            super(in);
+            _log = log;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return awaitStart() ? super.read() : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return awaitStart() ? super.read(b, off, len) : -1;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            return awaitStart() ? super.skip(n) : 0;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return _started ? super.available() : 0;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private synchronized boolean awaitStart() throws IOException {
+            if (_started || _ended) {
+                return _started;
+            }
+
+            try {
+                String line;
+
+                while ((line = readLine()) != null) {
+                    if (line.equals("S")) {
+                        _started = true;
+                        break;
+                    } else if (line.startsWith("L ")) {
+                        writeLog(line.substring(2));
+                    } else if (line.startsWith("E ")) {
+                        writeLog("Launch failed: " + line.substring(2));
+                        break;
+                    }
+                }
+            } finally {
+                _ended = true;
+                closeLog();
+            }
+
+            return _started;
+        }
+
+        private String readLine() throws IOException {
+            // Read one byte at a time so none of the slave's output is consumed
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int value;
+
+            while ((value = in.read()) >= 0) {
+                if (value == '\n') {
+                    return line.toString("UTF-8");
+                }
+
+                line.write(value);
+            }
+
+            return null;
+        }
+
+        private void writeLog(String message) {
+            try {
+                _log.write((message + "\n").getBytes(Charsets.UTF_8));
+                _log.flush();
+            } catch (IOException ex) {
+                // The log reader stopped
+                LOG.log(FINER, "Error writing launch log", ex);
+            }
+        }
+
+        private void closeLog() {
+            try {
+                _log.close();
+            } catch (IOException ex) {
+                LOG.log(FINER, "Error closing launch log", ex);
+            }
+        }
+    }
+
     public class SlaveConnection {
-        private final SshClient.SshSession _session;
+        private final Closeable _channel;
+        private final InputStream _output;
+        private final OutputStream _input;
+        private final InputStream _log;
         private final String _jobName;
         private final int _runNumber;
         private boolean _closed;
 
-        private SlaveConnection(SshClient.SshSession session, String jobName, int runNumber) {
-            _session = session;
+        private SlaveConnection(Closeable channel, InputStream output, OutputStream input, InputStream log, String jobName, int runNumber) {
+            _channel = channel;
+            _output = output;
+            _input = input;
+            _log = log;
             _jobName = jobName;
             _runNumber = runNumber;
         }
 
         public InputStream getOutput() {
-            return _session.getStdout();
+            return _output;
         }
 
         public OutputStream getInput() {
-            return _session.getStdin();
+            return _input;
         }
 
         public InputStream getLog() {
-            return _session.getStderr();
+            return _log;
         }
 
         @Override
@@ -206,7 +534,11 @@ public class SlaveClient {
                     }
                 }
 
-                _session.close();
+                try {
+                    _channel.close();
+                } catch (IOException ex) {
+                    LOG.log(FINER, "Error closing slave connection for job " + _jobName, ex);
+                }
             }
         }
     }
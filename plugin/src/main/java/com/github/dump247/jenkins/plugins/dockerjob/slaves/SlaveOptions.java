@@ -16,12 +16,32 @@ public class SlaveOptions {
     private boolean _cleanEnvironment;
     private Map<String, String> _environment = ImmutableMap.of();
     private List<DirectoryMapping> _directoryMappings = ImmutableList.of();
+    private transient HostReservation _reservation;
+    private transient LaunchLimiter.Permit _launchPermit;
+    private transient String _masterUrl;
+    private transient String _slaveName;
+    private transient String _slaveSecret;
 
     public SlaveOptions(String name, String image) {
         _name = name;
         _image = image;
     }
 
+    /**
+     * Copy the container options of another slave. The reservation and launch permit are not
+     * copied.
+     */
+    public SlaveOptions(SlaveOptions other) {
+        _name = other._name;
+        _image = other._image;
+        _cleanEnvironment = other._cleanEnvironment;
+        _environment = other._environment;
+        _directoryMappings = other._directoryMappings;
+        _masterUrl = other._masterUrl;
+        _slaveName = other._slaveName;
+        _slaveSecret = other._slaveSecret;
+    }
+
     public String getImage() {
         return _image;
     }
@@ -53,4 +73,62 @@ public class SlaveOptions {
     public void setDirectoryMappings(List<DirectoryMapping> directoryMappings) {
         _directoryMappings = ImmutableList.copyOf(directoryMappings);
     }
+
+    /**
+     * Check if the slave connects directly to the Jenkins master, rather than through the launch
+     * session.
+     */
+    public boolean isDirectConnection() {
+        return _masterUrl != null;
+    }
+
+    /**
+     * Root URL of the Jenkins master, or null if the slave connects through the launch session.
+     */
+    public String getMasterUrl() {
+        return _masterUrl;
+    }
+
+    public String getSlaveName() {
+        return _slaveName;
+    }
+
+    public String getSlaveSecret() {
+        return _slaveSecret;
+    }
+
+    /**
+     * Connect the slave directly to the master with the inbound (JNLP) slave protocol.
+     *
+     * @param masterUrl   root URL of the Jenkins master
+     * @param slaveName   name of the slave node
+     * @param slaveSecret secret the slave uses to connect as the node
+     */
+    public void setDirectConnection(String masterUrl, String slaveName, String slaveSecret) {
+        _masterUrl = masterUrl;
+        _slaveName = slaveName;
+        _slaveSecret = slaveSecret;
+    }
+
+    /**
+     * Host slot reserved for the slave, or null if no host has been reserved.
+     */
+    public HostReservation getReservation() {
+        return _reservation;
+    }
+
+    public void setReservation(HostReservation reservation) {
+        _reservation = reservation;
+    }
+
+    /**
+     * Permit held while the slave is launching, or null if the slave is not launching.
+     */
+    public LaunchLimiter.Permit getLaunchPermit() {
+        return _launchPermit;
+    }
+
+    public void setLaunchPermit(LaunchLimiter.Permit launchPermit) {
+        _launchPermit = launchPermit;
+    }
 }
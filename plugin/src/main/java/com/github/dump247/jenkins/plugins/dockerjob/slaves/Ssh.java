@@ -7,6 +7,7 @@ import com.google.common.base.Charsets;
 import com.google.common.base.Throwables;
 import com.google.common.io.CharStreams;
 import com.google.common.net.HostAndPort;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.trilead.ssh2.ChannelCondition;
 import com.trilead.ssh2.Connection;
 import com.trilead.ssh2.Session;
@@ -19,6 +20,11 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.charset.Charset;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 
 import static com.google.common.base.Objects.firstNonNull;
@@ -32,11 +38,45 @@ import static java.util.Arrays.asList;
  */
 public class Ssh {
     private static final Pattern REQUIRES_QUOTES = Pattern.compile("[\\s\"']");
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder()
+                    .setNameFormat("docker-job-ssh-watchdog-%d")
+                    .setDaemon(true)
+                    .build());
 
     public static Connection connect(HostAndPort host, StandardUsernameCredentials credentials) throws IOException {
-        Connection connection = new Connection(host.getHostText(), host.getPortOrDefault(22));
+        return connect(host, credentials, Duration.ZERO, Duration.ZERO, Duration.ZERO);
+    }
+
+    /**
+     * Connect and authenticate to an SSH server.
+     * <p/>
+     * Each phase of the connection has a separate deadline. A zero duration disables the deadline.
+     *
+     * @param connectTimeout time allowed to establish the TCP connection
+     * @param kexTimeout     time allowed to complete the initial key exchange
+     * @param authTimeout    time allowed to authenticate once the key exchange is complete
+     */
+    public static Connection connect(HostAndPort host, StandardUsernameCredentials credentials,
+                                     Duration connectTimeout, Duration kexTimeout, Duration authTimeout) throws IOException {
+        final Connection connection = new Connection(host.getHostText(), host.getPortOrDefault(22));
         connection.setTCPNoDelay(true);
-        connection.connect();
+        connection.connect(null, (int) connectTimeout.getMillis(), (int) kexTimeout.getMillis());
+
+        // Authentication has no timeout of its own, so close the connection if it takes too long.
+        // Closing the connection causes any blocked authentication call to fail.
+        final AtomicBoolean authTimedOut = new AtomicBoolean();
+        ScheduledFuture<?> authWatchdog = null;
+
+        if (authTimeout.getMillis() > 0) {
+            authWatchdog = WATCHDOG.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    authTimedOut.set(true);
+                    connection.close();
+                }
+            }, authTimeout.getMillis(), TimeUnit.MILLISECONDS);
+        }
 
         try {
             if (credentials instanceof StandardUsernamePasswordCredentials) {
@@ -61,7 +101,16 @@ public class Ssh {
             checkState(connection.isAuthenticationComplete(), "Authentication failed");
         } catch (Throwable ex) {
             connection.close();
+
+            if (authTimedOut.get()) {
+                throw new IOException(format("Authentication timed out after %dms: %s", authTimeout.getMillis(), host), ex);
+            }
+
             throw Throwables.propagate(ex);
+        } finally {
+            if (authWatchdog != null) {
+                authWatchdog.cancel(false);
+            }
         }
 
         return connection;
@@ -147,6 +196,14 @@ public class Ssh {
         return result.toString();
     }
 
+    /**
+     * Quote a single shell argument with single quotes, so the shell does not expand anything in
+     * the value.
+     */
+    public static String quoteArgument(String value) {
+        return "'" + value.replace("'", "'\\''") + "'";
+    }
+
     private static String readAll(InputStream stream, Charset charset) throws IOException {
         InputStreamReader reader = new InputStreamReader(stream, charset);
         return CharStreams.toString(reader);
@@ -6,8 +6,11 @@ import com.google.common.net.HostAndPort;
 import com.google.inject.Provider;
 import com.trilead.ssh2.ChannelCondition;
 import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.LocalStreamForwarder;
 import com.trilead.ssh2.Session;
+import org.joda.time.Duration;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -24,9 +27,15 @@ import static java.util.logging.Level.FINER;
 
 /**
  * Manages connections and sessions to an SSH server.
+ * <p/>
+ * Forwarded streams ({@link #openStream}) are channels on the same connections and count toward
+ * the maximum number of sessions per connection.
  */
 public class SshClient {
     public static final int DEFAULT_MAX_SESSIONS = 5;
+    public static final Duration CONNECT_TIMEOUT = Duration.standardSeconds(10);
+    public static final Duration KEX_TIMEOUT = Duration.standardSeconds(15);
+    public static final Duration AUTH_TIMEOUT = Duration.standardSeconds(15);
     private static final Logger LOG = Logger.getLogger(SshClient.class.getName());
 
     private final HostAndPort _host;
@@ -89,7 +98,7 @@ public class SshClient {
     }
 
     public Connection connect() throws IOException {
-        return Ssh.connect(_host, _credentialsProvider.get());
+        return Ssh.connect(_host, _credentialsProvider.get(), CONNECT_TIMEOUT, KEX_TIMEOUT, AUTH_TIMEOUT);
     }
 
     public Provider<StandardUsernameCredentials> getCredentialsProvider() {
@@ -105,6 +114,30 @@ public class SshClient {
     }
 
     public synchronized SshSession createSession() throws IOException {
+        SessionCount selected = selectConnection();
+
+        LOG.log(FINER, "Opening session to {0}", _host);
+        Session session = selected.connection.openSession();
+        selected.sessionCount += 1;
+        return new SshSession(selected.connection, session);
+    }
+
+    /**
+     * Open a TCP connection from the SSH server to an address reachable from the server.
+     *
+     * @param host address to connect to, relative to the SSH server
+     * @param port port to connect to
+     */
+    public synchronized SshStream openStream(String host, int port) throws IOException {
+        SessionCount selected = selectConnection();
+
+        LOG.log(FINER, "Opening stream to {0}:{1} on {2}", new Object[]{host, port, _host});
+        LocalStreamForwarder forwarder = selected.connection.createLocalStreamForwarder(host, port);
+        selected.sessionCount += 1;
+        return new SshStream(selected.connection, forwarder);
+    }
+
+    private SessionCount selectConnection() throws IOException {
         SessionCount selected = null;
 
         // Find connection with most sessions, but still less than max. This maximizes the number
@@ -123,23 +156,35 @@ public class SshClient {
             _connections.add(selected);
         }
 
-        LOG.log(FINER, "Opening session to {0}", _host);
-        Session session = selected.connection.openSession();
-        selected.sessionCount += 1;
-        return new SshSession(selected.connection, session);
+        return selected;
     }
 
     private synchronized void closeSession(SshSession session) {
-        int emptyConnections = 0;
-
         LOG.log(FINER, "Closing session to {0}", _host);
         session._session.close();
+        releaseChannel(session._connection);
+    }
+
+    private synchronized void closeStream(SshStream stream) {
+        LOG.log(FINER, "Closing stream to {0}", _host);
+
+        try {
+            stream._forwarder.close();
+        } catch (IOException ex) {
+            LOG.log(FINER, "Error closing stream to " + _host, ex);
+        }
+
+        releaseChannel(stream._connection);
+    }
+
+    private void releaseChannel(Connection connection) {
+        int emptyConnections = 0;
 
         Iterator<SessionCount> iter = _connections.iterator();
         while (iter.hasNext()) {
             SessionCount count = iter.next();
 
-            if (count.connection == session._connection) {
+            if (count.connection == connection) {
                 count.sessionCount -= 1;
             }
 
@@ -157,7 +202,7 @@ public class SshClient {
         }
     }
 
-    public final class SshSession {
+    public final class SshSession implements Closeable {
         private final Session _session;
         private final Connection _connection;
         private boolean _closed;
@@ -196,12 +241,53 @@ public class SshClient {
             _session.execCommand(cmd);
         }
 
+        /**
+         * Wait until one of the given {@link ChannelCondition} flags is set.
+         *
+         * @return condition flags, including {@link ChannelCondition#TIMEOUT} if the timeout expired
+         */
+        public int waitForCondition(int conditions, long timeout, TimeUnit timeoutUnit) {
+            return _session.waitForCondition(conditions, timeoutUnit.toMillis(timeout));
+        }
+
         public Optional<Integer> waitForExit(long timeout, TimeUnit timeoutUnit) throws InterruptedException {
             _session.waitForCondition(ChannelCondition.EXIT_STATUS, timeoutUnit.toMillis(timeout));
             return Optional.fromNullable(_session.getExitStatus());
         }
     }
 
+    public final class SshStream implements Closeable {
+        private final LocalStreamForwarder _forwarder;
+        private final Connection _connection;
+        private boolean _closed;
+
+        public SshStream(Connection connection, LocalStreamForwarder forwarder) {
+            _connection = connection;
+            _forwarder = forwarder;
+        }
+
+        public InputStream getInputStream() throws IOException {
+            return _forwarder.getInputStream();
+        }
+
+        public OutputStream getOutputStream() throws IOException {
+            return _forwarder.getOutputStream();
+        }
+
+        @Override
+        protected void finalize() throws Throwable {
+            super.finalize();
+            close();
+        }
+
+        public synchronized void close() {
+            if (!_closed) {
+                _closed = true;
+                closeStream(this);
+            }
+        }
+    }
+
     private static class SessionCount {
         public final Connection connection;
         public int sessionCount;
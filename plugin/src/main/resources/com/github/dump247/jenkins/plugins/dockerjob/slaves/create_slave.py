@@ -3,9 +3,12 @@
 # to the slave jar and output from the slave jar is written to standard output. Any messages related
 # to launching or running the slave container are written to standard error.
 #
+# The launch daemon (launch_daemon.py) uses the same functions to launch slaves over a socket.
+#
 
 import sys
-import time
+import errno
+import select
 import argparse
 import json
 import socket
@@ -13,6 +16,9 @@ import threading
 import re
 import os
 import hashlib
+import time
+import shlex
+import shutil
 from functools import partial
 import binascii
 import subprocess
@@ -27,13 +33,51 @@ INVALID_CONTAINER_ESCAPE = '_'
 INVALID_INITIAL_CONTAINER_CHAR = re.compile(r"[^a-zA-Z0-9]")
 INVALID_CONTAINER_CHARS = re.compile(r"[^a-zA-Z0-9.-]")  # _ is not here because is used as escape
 
+# Buffer sizes used to relay data between the slave and the launch session. The buffer grows while
+# reads fill it, so bulk transfers take fewer system calls, and shrinks again for small messages.
+MIN_RELAY_BUFFER = 64 * 1024
+MAX_RELAY_BUFFER = 1024 * 1024
+
+# Per-launch properties are written to a directory on the host that is bound into the container
+CONTAINER_RUN_DIR = '/var/lib/jenkins-docker-run'
+
+
+# Where messages go for the launch running on the current thread, see message()
+launch_output = threading.local()
+
+# Results that do not change between launches. The launch daemon keeps these between launches,
+# which run on separate threads.
+_account_id = None
+_pull_times = {}
+_cache_lock = threading.Lock()
+
 
 def message(value):
+    # The launch daemon sends the messages of each launch to the plugin on the launch's socket
+    sink = getattr(launch_output, 'message', None)
+
+    if sink is not None:
+        sink(value)
+        return
+
     sys.stderr.write(value)
     sys.stderr.write('\n')
     sys.stderr.flush()
 
 
+class StdioSession(object):
+    """Launch session on standard input and output, used when this script is run directly."""
+
+    input_fd = 0
+    output_fd = 1
+
+    def close_input(self):
+        sys.stdin.close()
+
+    def close_output(self):
+        sys.stdout.close()
+
+
 def hash_file(f):
     hash = hashlib.md5()
 
@@ -45,7 +89,26 @@ def hash_file(f):
     return hash.hexdigest()
 
 
-def pull_job_image(docker_client, name):
+def get_account_id():
+    global _account_id
+
+    with _cache_lock:
+        if _account_id is None:
+            _account_id = subprocess.getoutput(
+                'aws sts get-caller-identity --query "Account" --output text')
+
+        return _account_id
+
+
+def pull_job_image(docker_client, name, max_age=0):
+    # Skip the pull if the image was pulled recently by this process
+    with _cache_lock:
+        pull_time = _pull_times.get(name, 0)
+
+    if time.time() - pull_time < max_age:
+        message('Image {} was pulled recently'.format(name))
+        return
+
     for line in docker_client.pull(name, stream=True):
         pull_msg = json.loads(line.decode('utf-8'))
 
@@ -61,6 +124,9 @@ def pull_job_image(docker_client, name):
         else:
             message(pull_msg['status'])
 
+    with _cache_lock:
+        _pull_times[name] = time.time()
+
 
 def find_job_container(docker_client, name):
     try:
@@ -125,77 +191,153 @@ def container_changed(docker_client, container_info, create_opts):
     return False
 
 
-def create_server(address, port):
+def create_server(address):
+    # Each launch listens on its own ephemeral port, so launches on the same host do not wait for
+    # each other. The port is passed to the container in the run properties.
+    server = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
+    server.setsockopt(socket.IPPROTO_TCP, socket.TCP_NODELAY, 1)
+    server.settimeout(10.0)
+    server.bind((address, 0))
+    server.listen(1)
+    return server
+
+
+def splice_fd(read_fd, write_fd):
+    # Move data in the kernel without copying it into python. One side must be a pipe, which the
+    # launch session's stdin and stdout are. Returns False if splice is not supported for the
+    # descriptors and nothing was copied.
+    #
+    # A splice into a pipe holds the pipe's lock while it waits for data, so the session could not
+    # read the data that was already moved until more arrived. Wait for data before each splice.
+    poller = select.poll()
+    poller.register(read_fd, select.POLLIN)
+    copied = False
+
     while True:
-        server = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
-        server.setsockopt(socket.SOL_SOCKET, socket.SO_REUSEADDR, 1)
-        server.setsockopt(socket.IPPROTO_TCP, socket.TCP_NODELAY, 1)
-        server.settimeout(10.0)
+        poller.poll()
 
         try:
-            server.bind((address, port))
-            server.listen(1)
-            break
+            count = os.splice(read_fd, write_fd, MAX_RELAY_BUFFER)
         except OSError as ex:
-            # retry if address already in use
-            if ex.errno != 98:
-                raise
+            if not copied and ex.errno in (errno.EINVAL, errno.ENOSYS):
+                return False
 
-            server.close()
-            time.sleep(0.25)
+            raise
 
-    return server
+        if count == 0:
+            return True
 
+        copied = True
 
-def copy_socket_to_stdout(sock):
-    try:
-        while True:
-            data = sock.recv(4096)
 
-            if len(data) <= 0:
-                break
+def copy_fd(read_fd, write_fd):
+    # Data is written to the descriptor as soon as it is read, without a python buffer to flush.
+    # Each write sends everything that arrived since the last read.
+    size = MIN_RELAY_BUFFER
+    buf = memoryview(bytearray(MAX_RELAY_BUFFER))
 
-            sys.stdout.buffer.write(data)
-            sys.stdout.buffer.flush()
-    finally:
-        sock.shutdown(socket.SHUT_RD)
-        sys.stdout.close()
+    while True:
+        count = os.readv(read_fd, [buf[:size]])
+
+        if count == 0:
+            break
+
+        offset = 0
+
+        while offset < count:
+            offset += os.write(write_fd, buf[offset:count])
+
+        if count == size and size < MAX_RELAY_BUFFER:
+            size *= 2
+        elif count < size // 4 and size > MIN_RELAY_BUFFER:
+            size //= 2
+
+
+def relay(read_fd, write_fd):
+    if hasattr(os, 'splice') and splice_fd(read_fd, write_fd):
+        return
+
+    copy_fd(read_fd, write_fd)
 
 
-def copy_stdin_to_socket(sock):
+def copy_slave_to_session(sock, session):
     try:
-        while True:
-            data = sys.stdin.buffer.read1(4096)
+        relay(sock.fileno(), session.output_fd)
+    finally:
+        sock.shutdown(socket.SHUT_RD)
+        session.close_output()
 
-            if len(data) <= 0:
-                break
 
-            sock.sendall(data)
+def copy_session_to_slave(sock, session):
+    try:
+        relay(session.input_fd, sock.fileno())
     finally:
         sock.shutdown(socket.SHUT_WR)
-        sys.stdin.close()
+        session.close_input()
 
 
-def run_server(server_socket):
+def run_server(server_socket, session):
     # Accept one connection and stop listening for connections
     slave, slave_addr = server_socket.accept()
     server_socket.close()
 
     slave.setsockopt(socket.IPPROTO_TCP, socket.TCP_NODELAY, 1)
 
+    # The relay uses the file descriptor directly, which requires a blocking socket
+    slave.setblocking(True)
+
     try:
-        th = threading.Thread(target=lambda: copy_stdin_to_socket(slave))
+        th = threading.Thread(target=lambda: copy_session_to_slave(slave, session))
         th.daemon = True
         th.start()
 
-        copy_socket_to_stdout(slave)
+        copy_slave_to_session(slave, session)
         th.join(5.0)
     finally:
-        sys.stdin.close()
-        sys.stdout.close()
+        session.close_input()
+        session.close_output()
         slave.close()
 
 
+def wait_for_container(docker_client, container_id, session):
+    # The slave connects directly to the master. Stop the container when the plugin closes the
+    # launch session, otherwise wait for the slave to exit.
+    def stop_on_close():
+        while os.read(session.input_fd, 4096):
+            pass
+
+        message('Launch session closed')
+
+        try:
+            docker.Client(base_url=docker_client.base_url, version='1.15').kill(container_id)
+        except docker.errors.APIError as ex:
+            message('Unable to stop container: {}'.format(ex))
+
+    th = threading.Thread(target=stop_on_close)
+    th.daemon = True
+    th.start()
+
+    status = docker_client.wait(container_id)
+    message('Container exited with status {}'.format(status))
+
+
+def write_run_properties(run_dir, properties):
+    # The properties may include the slave secret, so only the owner may read them
+    os.makedirs(run_dir, mode=0o700, exist_ok=True)
+    os.chmod(run_dir, 0o700)
+    path = os.path.join(run_dir, 'properties.sh')
+    tmp_path = path + '.tmp'
+
+    if os.path.exists(tmp_path):
+        os.remove(tmp_path)
+
+    with os.fdopen(os.open(tmp_path, os.O_WRONLY | os.O_CREAT | os.O_EXCL, 0o600), 'w') as fh:
+        for key, value in sorted(properties.items()):
+            fh.write('{}={}\n'.format(key, shlex.quote(str(value))))
+
+    os.rename(tmp_path, path)
+
+
 def env_var(value):
     value = decode_arg(value)
 
@@ -242,7 +384,7 @@ def encode_container_name(name):
     return first + INVALID_CONTAINER_CHARS.sub(lambda m: escape_container_char(m.group(0)), rest)
 
 
-def main(args):
+def parse_args(args):
     parser = argparse.ArgumentParser(
         description=('Start a new Jenkins slave in a docker container. '
                      'Output from the slave slave jar is written to stdout and input to the slave is received on stdin. '
@@ -275,8 +417,24 @@ def main(args):
                         dest='volumes',
                         type=volume,
                         default=[])
+    parser.add_argument('--direct',
+                        help=('Connect the slave directly to the Jenkins master at this URL. '
+                              'The slave secret is read from the first line of standard input.'),
+                        metavar='URL',
+                        dest='master_url',
+                        type=decode_arg)
+    parser.add_argument('--slave-name',
+                        help='Name of the Jenkins slave. Required with --direct.',
+                        type=decode_arg)
     options = parser.parse_args(args)
 
+    if options.master_url and not options.slave_name:
+        parser.error('--slave-name is required with --direct')
+
+    return options
+
+
+def launch(docker_client, options, slave_secret, session, pull_max_age=0, on_start=None):
     install_dir = os.path.dirname(os.path.abspath(__file__))
     slave_dir = os.path.join(install_dir, 'slave')
 
@@ -284,19 +442,21 @@ def main(args):
         slave_config = env_to_map(fh.readlines())
 
     server_address = slave_config['CONNECT_ADDRESS']
-    server_port = int(slave_config['CONNECT_PORT'])
 
     container_name = encode_container_name(options.name)
+    run_dir = os.path.join(install_dir, 'run', container_name)
+    run_properties = {}
+
+    if options.master_url:
+        run_properties['MASTER_URL'] = options.master_url
+        run_properties['SLAVE_NAME'] = options.slave_name
+        run_properties['SLAVE_SECRET'] = slave_secret
 
     message(
         'Creating slave container for job "{}" (container={})'.format(options.name, container_name))
 
-    # TODO override docker url in configuration
-    # TODO use minimum possible API version?
-    docker_client = docker.Client(base_url='unix://var/run/docker.sock', version='1.15')
-
     # Pull the image so we have the latest version locally
-    pull_job_image(docker_client, options.image)
+    pull_job_image(docker_client, options.image, pull_max_age)
 
     # Check if container exists or needs to be updated
     container_info = find_job_container(docker_client, container_name)
@@ -304,9 +464,7 @@ def main(args):
     # Append AWS_ACCOUNT_ID
     if not any(env.startswith('AWS_ACCOUNT_ID=')
                for env in options.environment):
-        account_id = subprocess.getoutput(
-            'aws sts get-caller-identity --query "Account" --output text')
-        options.environment.append("AWS_ACCOUNT_ID={}".format(account_id))
+        options.environment.append("AWS_ACCOUNT_ID={}".format(get_account_id()))
 
     create_container = True
     create_opts = {
@@ -317,7 +475,7 @@ def main(args):
         # changes. This ensures that an init script change will cause the container to be recreated.
         'command': ['/bin/bash', install_dir + '/launch_slave.sh',
                     hash_file(slave_dir + '/init_slave.sh')],
-        'volumes': [install_dir] + [v['container'] for v in options.volumes],
+        'volumes': [install_dir, CONTAINER_RUN_DIR] + [v['container'] for v in options.volumes],
         'environment': options.environment
     }
     start_opts = {
@@ -328,6 +486,9 @@ def main(args):
             **{slave_dir: {
                 'bind': install_dir,
                 'ro': True
+            }, run_dir: {
+                'bind': CONTAINER_RUN_DIR,
+                'ro': True
             }
             })
     }
@@ -359,14 +520,28 @@ def main(args):
         # Kill the container, if it is currently running
         docker_client.kill(start_opts['container'])
 
-    server = create_server(server_address, server_port)
+    server = None
+
+    if not options.master_url:
+        server = create_server(server_address)
+        run_properties['CONNECT_PORT'] = server.getsockname()[1]
+
+    write_run_properties(run_dir, run_properties)
 
     message('Starting container: {}'.format(start_opts))
     docker_client.start(**start_opts)
 
+    if on_start is not None:
+        on_start()
+
     try:
-        run_server(server)
+        if server is None:
+            wait_for_container(docker_client, start_opts['container'], session)
+        else:
+            run_server(server, session)
     finally:
+        shutil.rmtree(run_dir, ignore_errors=True)
+
         if options.clean:
             message('Deleting container {} for job "{}"'.format(
                 start_opts['container'], options.name))
@@ -374,7 +549,23 @@ def main(args):
         else:
             message('Stopping container {} for job "{}"'.format(
                 start_opts['container'], options.name))
-            docker_client.kill(start_opts['container'])
+
+            try:
+                docker_client.kill(start_opts['container'])
+            except docker.errors.APIError as ex:
+                # The container may have already exited
+                message('Unable to stop container: {}'.format(ex))
+
+
+def main(args):
+    options = parse_args(args)
+    slave_secret = sys.stdin.readline().strip() if options.master_url else None
+
+    # TODO override docker url in configuration
+    # TODO use minimum possible API version?
+    docker_client = docker.Client(base_url='unix://var/run/docker.sock', version='1.15')
+
+    launch(docker_client, options, slave_secret, StdioSession())
 
 
 if __name__ == '__main__':
@@ -6,10 +6,25 @@
 #
 # See SlaveClient#initialize()
 #
+# Usage: init_host.sh [--launch-daemon|--no-launch-daemon]
+#
+#   --launch-daemon     start the launch daemon, or restart it if its scripts changed
+#   --no-launch-daemon  stop the launch daemon if it is running (default)
+#
 
 set -o errexit
 set -o nounset
 
+LAUNCH_DAEMON=false
+
+for arg in "$@"; do
+  case "${arg}" in
+    --launch-daemon) LAUNCH_DAEMON=true ;;
+    --no-launch-daemon) LAUNCH_DAEMON=false ;;
+    *) echo "Unknown argument: ${arg}" >&2; exit 2 ;;
+  esac
+done
+
 # Verify requirements
 which docker python3 >/dev/null
 
@@ -22,14 +37,38 @@ for key, value in cli.version().items():
 
 LAUNCH_DIR=/var/lib/jenkins-docker
 
-# Clean the launch directory
-rm -rf ${LAUNCH_DIR}/* >/dev/null
+# The launch directory is not cleaned. The plugin keeps a manifest of the files it installed and
+# only replaces the files that changed.
 mkdir -p ${LAUNCH_DIR}/slave >/dev/null
 
 # Discover IP address of docker0 interface
-# The specific port number value is irrelevant so long as the port is available
+# The port is chosen by create_slave.py for each launch
 cat >${LAUNCH_DIR}/slave/properties.sh <<EOF
 CONNECT_ADDRESS=$(/sbin/ip addr show docker0 | grep -o 'inet [0-9]\+\.[0-9]\+\.[0-9]\+\.[0-9]\+' | grep -o [0-9].*)
-CONNECT_PORT=12112
 JDK_HOME=/usr/lib/jvm/jre-1.8.0-openjdk/
 EOF
+
+# Start the launch daemon, or restart it if its scripts changed since it was started. The daemon is
+# stopped when it is disabled, since it also proxies the docker API. A stopped daemon stops
+# listening right away but keeps running until its launches finish.
+DAEMON_PID_FILE=${LAUNCH_DIR}/launch_daemon.pid
+DAEMON_VERSION_FILE=${LAUNCH_DIR}/launch_daemon.version
+DAEMON_VERSION=$(cat ${LAUNCH_DIR}/launch_daemon.py ${LAUNCH_DIR}/create_slave.py | md5sum | cut -d ' ' -f 1)
+DAEMON_PID=$(cat ${DAEMON_PID_FILE} 2>/dev/null || true)
+
+if [ -n "${DAEMON_PID}" ] && kill -0 "${DAEMON_PID}" 2>/dev/null; then
+  if [ "${LAUNCH_DAEMON}" != true ] || [ "$(cat ${DAEMON_VERSION_FILE} 2>/dev/null || true)" != "${DAEMON_VERSION}" ]; then
+    kill -TERM "${DAEMON_PID}"
+    rm -f ${DAEMON_PID_FILE}
+    DAEMON_PID=
+  fi
+else
+  DAEMON_PID=
+fi
+
+if [ "${LAUNCH_DAEMON}" = true ] && [ -z "${DAEMON_PID}" ]; then
+  echo "${DAEMON_VERSION}" >${DAEMON_VERSION_FILE}
+  cd ${LAUNCH_DIR}
+  setsid nohup python3 ${LAUNCH_DIR}/launch_daemon.py --port 12113 --pid-file ${DAEMON_PID_FILE} \
+    </dev/null >>${LAUNCH_DIR}/launch_daemon.log 2>&1 &
+fi
@@ -0,0 +1,267 @@
+#
+# Long running process that launches slave containers on behalf of the plugin, so a launch does not
+# have to start a new python process and pull the job image every time.
+#
+# The daemon listens on the loopback interface. The plugin connects through its SSH connection to
+# the host and sends one launch request per connection:
+#
+#   {"args": [<create_slave.py arguments>], "secret": <slave secret or null>}\n
+#
+# The daemon replies with lines describing the progress of the launch:
+#
+#   L <message>   log message, see create_slave.message()
+#   S             the container started, the rest of the connection is the slave's channel
+#   E <message>   the launch failed, the connection is closed
+#
+# A launch that fails after "S" closes the connection without a message.
+#
+# Messages logged after the container started are written to standard error of the daemon.
+#
+# The daemon also relays connections to the docker engine API, which the plugin can not reach
+# over SSH because the API listens on a unix socket:
+#
+#   {"proxy": "docker"}\n
+#
+# The daemon replies "S" once connected to docker and relays the rest of the connection, or "E"
+# if docker is not available.
+#
+# See SlaveClient#createSlave() and DockerClient
+#
+
+import sys
+import os
+import argparse
+import json
+import signal
+import socket
+import socketserver
+import threading
+import time
+import traceback
+
+import docker
+
+import create_slave
+
+
+DEFAULT_PORT = 12113
+
+# Images pulled within this many seconds are not pulled again
+PULL_MAX_AGE = 60
+
+# Maximum size of a launch request line
+MAX_REQUEST = 1024 * 1024
+
+DOCKER_SOCKET = '/var/run/docker.sock'
+
+
+def log(value):
+    sys.stderr.write('{} {}\n'.format(time.strftime('%Y-%m-%dT%H:%M:%S'), value))
+    sys.stderr.flush()
+
+
+def peer_uid(sock):
+    """User that owns the client end of a loopback TCP connection, or None if it is not known."""
+    host, port = sock.getpeername()[:2]
+    local_address = '0100007F:{:04X}'.format(port)
+
+    with open('/proc/net/tcp') as tcp:
+        next(tcp)
+
+        for line in tcp:
+            fields = line.split()
+
+            if fields[1] == local_address:
+                return int(fields[7])
+
+    return None
+
+
+def read_line(sock):
+    # Read one byte at a time so none of the slave's channel is read along with the request
+    data = bytearray()
+
+    while len(data) < MAX_REQUEST:
+        value = sock.recv(1)
+
+        if not value:
+            raise EOFError('Connection closed before the launch request was read')
+
+        if value == b'\n':
+            return data.decode('utf-8')
+
+        data += value
+
+    raise ValueError('Launch request is too long')
+
+
+def single_line(value):
+    return ' '.join(str(value).splitlines())
+
+
+def relay_socket(source, target):
+    try:
+        create_slave.relay(source.fileno(), target.fileno())
+    except OSError:
+        pass
+    finally:
+        try:
+            target.shutdown(socket.SHUT_WR)
+        except OSError:
+            pass
+
+
+def proxy_docker(sock):
+    docker_sock = socket.socket(socket.AF_UNIX, socket.SOCK_STREAM)
+
+    try:
+        docker_sock.connect(DOCKER_SOCKET)
+        sock.sendall(b'S\n')
+
+        th = threading.Thread(target=lambda: relay_socket(sock, docker_sock))
+        th.daemon = True
+        th.start()
+
+        relay_socket(docker_sock, sock)
+        th.join()
+    finally:
+        docker_sock.close()
+
+
+class SocketSession(object):
+    """Launch session on a connection from the plugin."""
+
+    def __init__(self, sock):
+        self.sock = sock
+        self.input_fd = sock.fileno()
+        self.output_fd = sock.fileno()
+
+    def close_input(self):
+        try:
+            self.sock.shutdown(socket.SHUT_RD)
+        except OSError:
+            pass
+
+    def close_output(self):
+        try:
+            self.sock.shutdown(socket.SHUT_WR)
+        except OSError:
+            pass
+
+
+class LaunchHandler(socketserver.BaseRequestHandler):
+    def handle(self):
+        sock = self.request
+        session = SocketSession(sock)
+        name = None
+        is_started = False
+
+        def send(value):
+            sock.sendall(value.encode('utf-8'))
+
+        def started():
+            nonlocal is_started
+            send('S\n')
+            is_started = True
+            create_slave.launch_output.message = lambda value: log('{}: {}'.format(name, value))
+
+        try:
+            # Only the user the daemon runs as may launch containers
+            if peer_uid(sock) != os.getuid():
+                log('Rejected connection from another user: {}'.format(sock.getpeername()))
+                return
+
+            create_slave.launch_output.message = lambda value: send('L {}\n'.format(single_line(value)))
+
+            request = json.loads(read_line(sock))
+
+            if request.get('proxy') == 'docker':
+                proxy_docker(sock)
+                return
+
+            options = create_slave.parse_args(request['args'])
+            name = options.name
+            log('{}: launching container'.format(name))
+
+            docker_client = self.server.create_docker_client()
+
+            try:
+                create_slave.launch(docker_client, options, request.get('secret'), session,
+                                    pull_max_age=PULL_MAX_AGE, on_start=started)
+            finally:
+                docker_client.close()
+
+            log('{}: container exited'.format(name))
+        except SystemExit:
+            # parse_args() reports its own errors
+            send('E Invalid launch arguments\n')
+        except Exception as ex:
+            log('{}: launch failed\n{}'.format(name, traceback.format_exc()))
+
+            try:
+                if is_started:
+                    # The connection is the slave's channel, an error message would corrupt it
+                    sock.shutdown(socket.SHUT_RDWR)
+                else:
+                    send('E {}\n'.format(single_line(ex)))
+            except OSError:
+                pass
+        finally:
+            create_slave.launch_output.message = None
+
+
+class LaunchServer(socketserver.ThreadingMixIn, socketserver.TCPServer):
+    allow_reuse_address = True
+
+    # Running launches keep their containers, so let them finish when the daemon is stopped
+    daemon_threads = False
+
+    def __init__(self, address):
+        socketserver.TCPServer.__init__(self, address, LaunchHandler)
+
+    def create_docker_client(self):
+        # Each launch gets its own client, because a client is not safe to share between threads
+        # and a launch blocks its client while it waits for the container to exit
+        return docker.Client(base_url='unix://var/run/docker.sock', version='1.15')
+
+
+def create_server(port):
+    # A daemon that is being replaced stops listening when it is signalled, retry until it is gone
+    deadline = time.time() + 30
+
+    while True:
+        try:
+            return LaunchServer(('127.0.0.1', port))
+        except OSError:
+            if time.time() > deadline:
+                raise
+
+            time.sleep(0.2)
+
+
+def main(args):
+    parser = argparse.ArgumentParser(description='Launch slave containers for the Jenkins docker plugin.')
+    parser.add_argument('--port', type=int, default=DEFAULT_PORT, help='Port to listen on')
+    parser.add_argument('--pid-file', help='File to write the process id to once listening')
+    options = parser.parse_args(args)
+
+    server = create_server(options.port)
+
+    if options.pid_file:
+        with open(options.pid_file, 'w') as f:
+            f.write('{}\n'.format(os.getpid()))
+
+    def stop(signum, frame):
+        # shutdown() waits for serve_forever() to return, so it can not be called on this thread
+        threading.Thread(target=server.shutdown).start()
+
+    signal.signal(signal.SIGTERM, stop)
+
+    log('Listening on port {}'.format(options.port))
+    server.serve_forever()
+    server.socket.close()
+    log('Stopped listening, waiting for running launches')
+
+
+if __name__ == '__main__':
+    main(sys.argv[1:])
@@ -11,6 +11,10 @@ SLAVE_JAR_PATH="${DIR}/slave.jar"
 
 source "${DIR}/properties.sh"
 
+# Properties for this launch, written by create_slave.py
+RUN_PROPERTIES=/var/lib/jenkins-docker-run/properties.sh
+[ -f "${RUN_PROPERTIES}" ] && source "${RUN_PROPERTIES}"
+
 if [[ -f ${SLAVE_JAR_PATH} ]]; then
     cp -f "${SLAVE_JAR_PATH}" /tmp/slave.jar
 else
@@ -30,4 +34,23 @@ if [[ -z ${JAVA_BIN} ]]; then
     exit 1
 fi
 
-"${JAVA_BIN}" -jar /tmp/slave.jar -connectTo "${CONNECT_ADDRESS}:${CONNECT_PORT}"
\ No newline at end of file
+if [[ -n ${MASTER_URL:-} ]]; then
+    # Connect directly to the master with the inbound slave protocol. The slave secret is passed
+    # in a java argument file (java 9 and later), so it is not in the process list.
+    JAVA_VERSION=$("${JAVA_BIN}" -version 2>&1 | sed -n 's/.* version "\([^"]*\)".*/\1/p' | head -n 1)
+    JAVA_MAJOR=${JAVA_VERSION#1.}
+    JAVA_MAJOR=${JAVA_MAJOR%%[._-]*}
+
+    if [[ ${JAVA_MAJOR} =~ ^[0-9]+$ ]] && (( JAVA_MAJOR >= 9 )); then
+        ARGS_FILE=$(umask 077 && mktemp)
+        trap 'rm -f "${ARGS_FILE}"' EXIT
+        printf '%s\n' -cp /tmp/slave.jar hudson.remoting.jnlp.Main -headless \
+            -url "\"${MASTER_URL}\"" "\"${SLAVE_SECRET}\"" "\"${SLAVE_NAME}\"" > "${ARGS_FILE}"
+        "${JAVA_BIN}" "@${ARGS_FILE}"
+    else
+        echo "Java ${JAVA_VERSION} does not support argument files, the slave secret is visible in the process list" 1>&2
+        "${JAVA_BIN}" -cp /tmp/slave.jar hudson.remoting.jnlp.Main -headless -url "${MASTER_URL}" "${SLAVE_SECRET}" "${SLAVE_NAME}"
+    fi
+else
+    "${JAVA_BIN}" -jar /tmp/slave.jar -connectTo "${CONNECT_ADDRESS}:${CONNECT_PORT}"
+fi
\ No newline at end of file
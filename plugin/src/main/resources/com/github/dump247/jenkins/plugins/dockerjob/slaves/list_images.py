@@ -0,0 +1,28 @@
+#
+# List the docker images available on the host, one per line. Each image is listed by each of its
+# tags and digests. Images with no tag or digest are not listed.
+#
+# See SlaveClient#listImages()
+#
+
+import sys
+
+import docker
+
+
+def main():
+    docker_client = docker.Client(base_url='unix://var/run/docker.sock', version='1.15')
+    names = set()
+
+    for image in docker_client.images():
+        for name in (image.get('RepoTags') or []) + (image.get('RepoDigests') or []):
+            if not name.startswith('<none>'):
+                names.add(name)
+
+    for name in sorted(names):
+        sys.stdout.write(name)
+        sys.stdout.write('\n')
+
+
+if __name__ == '__main__':
+    main()
@@ -0,0 +1,197 @@
+#
+# Measure the relay that create_slave.py uses to move data between the slave socket and the launch
+# session. Data is relayed from a socket to a pipe, like the slave output that is relayed to the
+# session's stdout. The socket is a loopback TCP connection like the slave's, or a unix socket pair.
+# Each relay method is measured for bulk throughput (MB/s) and for the round trip latency of small
+# messages, like the remoting protocol's commands. A relay that holds back data it already moved
+# shows up as a latency test that does not finish.
+#
+# This script is not installed on hosts. Run it on a host, or any linux machine, with:
+#
+#   python3 relay_benchmark.py [--size MB] [--messages COUNT] [--message-size BYTES] [--socket tcp|unix]
+#
+
+import sys
+import os
+import types
+import socket
+import threading
+import time
+import argparse
+import statistics
+
+sys.path.insert(0, os.path.dirname(os.path.abspath(__file__)))
+
+try:
+    import docker
+except ImportError:
+    # The relay does not use docker, so the benchmark can run where the module is not installed
+    sys.modules['docker'] = types.ModuleType('docker')
+
+import create_slave
+
+
+def relay_previous(sock, write_fd):
+    # The relay before splice_fd and copy_fd: 4 KB reads with a flush after every chunk
+    out = os.fdopen(write_fd, 'wb', closefd=False)
+
+    while True:
+        data = sock.recv(4096)
+
+        if len(data) <= 0:
+            break
+
+        out.write(data)
+        out.flush()
+
+
+def relay_copy(sock, write_fd):
+    create_slave.copy_fd(sock.fileno(), write_fd)
+
+
+def relay_splice(sock, write_fd):
+    if not create_slave.splice_fd(sock.fileno(), write_fd):
+        raise OSError('splice is not supported')
+
+
+METHODS = [
+    ('previous', relay_previous),
+    ('copy', relay_copy),
+    ('splice', relay_splice),
+]
+
+
+def tcp_socket_pair():
+    server = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
+    server.bind(('127.0.0.1', 0))
+    server.listen(1)
+    client = socket.create_connection(server.getsockname())
+    accepted, _ = server.accept()
+    server.close()
+
+    for sock in (client, accepted):
+        sock.setsockopt(socket.IPPROTO_TCP, socket.TCP_NODELAY, 1)
+
+    return client, accepted
+
+
+SOCKET_PAIRS = {
+    'tcp': tcp_socket_pair,
+    'unix': socket.socketpair,
+}
+
+
+class Relay(object):
+    # Slave socket -> relay method -> session pipe
+
+    def __init__(self, method, socket_pair):
+        self.slave, relay_sock = socket_pair()
+        relay_sock.setblocking(True)
+        self.read_fd, write_fd = os.pipe()
+        self.error = None
+
+        def run():
+            try:
+                method(relay_sock, write_fd)
+            except Exception as ex:
+                self.error = ex
+            finally:
+                relay_sock.close()
+                os.close(write_fd)
+
+        self.thread = threading.Thread(target=run, daemon=True)
+        self.thread.start()
+
+    def read_exactly(self, count):
+        data = bytearray()
+
+        while len(data) < count:
+            chunk = os.read(self.read_fd, count - len(data))
+
+            if not chunk:
+                raise EOFError('relay ended after {} of {} bytes'.format(len(data), count))
+
+            data += chunk
+
+        return data
+
+    def close(self):
+        self.slave.close()
+        self.thread.join()
+        os.close(self.read_fd)
+
+        if self.error is not None:
+            raise self.error
+
+
+def measure_throughput(method, socket_pair, size):
+    relay = Relay(method, socket_pair)
+    block = os.urandom(1024 * 1024)
+    received = [0]
+
+    def drain():
+        while True:
+            chunk = os.read(relay.read_fd, 1024 * 1024)
+
+            if not chunk:
+                break
+
+            received[0] += len(chunk)
+
+    reader = threading.Thread(target=drain, daemon=True)
+    start = time.perf_counter()
+    reader.start()
+
+    for _ in range(size // len(block)):
+        relay.slave.sendall(block)
+
+    relay.slave.shutdown(socket.SHUT_WR)
+    reader.join()
+    elapsed = time.perf_counter() - start
+    relay.close()
+
+    if received[0] != size:
+        raise AssertionError('relayed {} of {} bytes'.format(received[0], size))
+
+    return size / elapsed / (1024 * 1024)
+
+
+def measure_latency(method, socket_pair, messages, message_size):
+    relay = Relay(method, socket_pair)
+    message = os.urandom(message_size)
+    times = []
+
+    for _ in range(messages):
+        start = time.perf_counter()
+        relay.slave.sendall(message)
+        relay.read_exactly(message_size)
+        times.append(time.perf_counter() - start)
+
+    relay.close()
+    times.sort()
+    return statistics.median(times) * 1e6, times[int(len(times) * 0.99)] * 1e6
+
+
+def main():
+    parser = argparse.ArgumentParser(description='Measure the slave relay of create_slave.py.')
+    parser.add_argument('--size', type=int, default=256, help='MB to relay for the throughput test')
+    parser.add_argument('--messages', type=int, default=10000, help='Number of messages for the latency test')
+    parser.add_argument('--message-size', type=int, default=64, help='Bytes in each message for the latency test')
+    parser.add_argument('--socket', choices=sorted(SOCKET_PAIRS), default='tcp', help='Type of the slave socket')
+    options = parser.parse_args()
+    socket_pair = SOCKET_PAIRS[options.socket]
+
+    print('{:<10} {:>10} {:>14} {:>14}'.format('method', 'MB/s', 'median (us)', 'p99 (us)'))
+
+    for name, method in METHODS:
+        if name == 'splice' and not hasattr(os, 'splice'):
+            print('{:<10} not supported by this python'.format(name))
+            continue
+
+        throughput = measure_throughput(method, socket_pair, options.size * 1024 * 1024)
+        median, p99 = measure_latency(method, socket_pair, options.messages, options.message_size)
+        print('{:<10} {:>10.1f} {:>14.1f} {:>14.1f}'.format(name, throughput, median, p99))
+
+
+if __name__ == '__main__':
+    main()
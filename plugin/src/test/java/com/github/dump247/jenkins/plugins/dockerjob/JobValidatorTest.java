@@ -0,0 +1,269 @@
+package com.github.dump247.jenkins.plugins.dockerjob;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import hudson.model.Label;
+import hudson.model.labels.LabelAtom;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import static com.google.common.base.Strings.nullToEmpty;
+import static com.google.common.collect.Lists.newArrayList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class JobValidatorTest {
+    private static final Logger LOG = Logger.getLogger(JobValidatorTest.class.getName());
+
+    /**
+     * System property that enables {@link #benchmark()}.
+     */
+    private static final String BENCHMARK_PROPERTY = "dockerjob.benchmark";
+
+    @Rule
+    public JenkinsRule jenkins = new JenkinsRule();
+
+    @Test
+    public void noLabelMatchesCloudWithoutRequiredLabels() throws Exception {
+        JobValidator validator = new JobValidator("test", ImmutableSet.<LabelAtom>of(), Label.parse("docker"));
+
+        Optional<JobValidator.JobValidationResult> result = validator.validate(null);
+
+        assertTrue(result.isPresent());
+        assertNull(result.get().imageName);
+        assertEquals(Label.parse("docker"), result.get().labels);
+    }
+
+    @Test
+    public void requiredLabelsMustBeInExpression() throws Exception {
+        setImages(image("java-image", "java"));
+        JobValidator validator = new JobValidator("test", Label.parse("docker"), Label.parse("linux"));
+
+        assertFalse(validator.validate(null).isPresent());
+        assertFalse(validator.validate(Label.parseExpression("linux")).isPresent());
+        assertFalse(validator.validate(Label.parseExpression("java")).isPresent());
+        assertFalse(validator.validate(Label.parseExpression("linux || java")).isPresent());
+
+        Optional<JobValidator.JobValidationResult> cloud = validator.validate(Label.parseExpression("docker && linux"));
+        assertTrue(cloud.isPresent());
+        assertNull(cloud.get().imageName);
+
+        Optional<JobValidator.JobValidationResult> image = validator.validate(Label.parseExpression("docker && java"));
+        assertTrue(image.isPresent());
+        assertEquals("java-image", image.get().imageName);
+        assertEquals(Label.parse("docker linux java"), image.get().labels);
+    }
+
+    @Test
+    public void cloudLabelsMatchBeforeImages() throws Exception {
+        setImages(image("docker-image", "docker"));
+        JobValidator validator = new JobValidator("test", ImmutableSet.<LabelAtom>of(), Label.parse("docker"));
+
+        Optional<JobValidator.JobValidationResult> result = validator.validate(Label.parseExpression("docker"));
+
+        assertTrue(result.isPresent());
+        assertNull(result.get().imageName);
+    }
+
+    @Test
+    public void firstMatchingImageInConfigurationOrder() throws Exception {
+        setImages(
+                image("java7", "java"),
+                image("java8", "java java8"),
+                image("python", "python"),
+                image("polyglot", "java python"));
+        JobValidator validator = new JobValidator("test", ImmutableSet.<LabelAtom>of(), Label.parse("docker"));
+
+        assertEquals("java7", validator.validate(Label.parseExpression("java")).get().imageName);
+        assertEquals("java8", validator.validate(Label.parseExpression("java8")).get().imageName);
+        assertEquals("java8", validator.validate(Label.parseExpression("java && java8")).get().imageName);
+        assertEquals("polyglot", validator.validate(Label.parseExpression("java && python")).get().imageName);
+
+        // Order of the atoms in the expression does not matter, only the order of the images
+        assertEquals("java7", validator.validate(Label.parseExpression("python || java")).get().imageName);
+        assertEquals("python", validator.validate(Label.parseExpression("python && !java")).get().imageName);
+
+        assertFalse(validator.validate(Label.parseExpression("java && ruby")).isPresent());
+    }
+
+    @Test
+    public void resultsDiscardedWhenLabeledImagesReplaced() throws Exception {
+        setImages(image("first", "java"));
+        JobValidator validator = new JobValidator("test", ImmutableSet.<LabelAtom>of(), Label.parse("docker"));
+        Label java = Label.parseExpression("java");
+        Label python = Label.parseExpression("python");
+
+        assertEquals("first", validator.validate(java).get().imageName);
+        assertFalse(validator.validate(python).isPresent());
+
+        setImages(image("second", "java"), image("third", "python"));
+
+        assertEquals("second", validator.validate(java).get().imageName);
+        assertEquals("third", validator.validate(python).get().imageName);
+
+        setImages();
+
+        assertFalse(validator.validate(java).isPresent());
+        assertFalse(validator.validate(python).isPresent());
+    }
+
+    @Test
+    public void imageEnvironmentInResult() throws Exception {
+        DockerJobGlobalConfiguration.get().setLabeledImages(ImmutableList.of(
+                new LabeledDockerImage("java-image", "java", "JAVA_HOME=/opt/java")));
+        JobValidator validator = new JobValidator("test", ImmutableSet.<LabelAtom>of(), Label.parse("docker"));
+
+        Optional<JobValidator.JobValidationResult> result = validator.validate(Label.parseExpression("java"));
+
+        assertTrue(result.isPresent());
+        assertEquals("/opt/java", result.get().environment.get("JAVA_HOME"));
+    }
+
+    @Test
+    public void indexedMatchesLinearScan() throws Exception {
+        assertMatchesLinearScan(new Random(1234), 200, 500, 1000);
+    }
+
+    /**
+     * Times the indexed match against a linear scan of a large image list. Only runs when the
+     * <code>dockerjob.benchmark</code> system property is true.
+     */
+    @Test
+    public void benchmark() throws Exception {
+        assumeTrue(Boolean.getBoolean(BENCHMARK_PROPERTY));
+        assertMatchesLinearScan(new Random(1234), 1000, 10000, 10000);
+    }
+
+    /**
+     * Check that the validator finds the same image as a linear scan for random label
+     * expressions, and log the time taken by each.
+     */
+    private void assertMatchesLinearScan(Random random, int imageCount, int labelCount, int expressionCount) throws Exception {
+        setImages(createImages(random, imageCount, labelCount));
+
+        List<LabeledDockerImage> images = DockerJobGlobalConfiguration.get().getLabeledImages();
+        Set<LabelAtom> cloudLabels = Label.parse("docker");
+        JobValidator validator = new JobValidator("test", ImmutableSet.<LabelAtom>of(), cloudLabels);
+        List<Label> expressions = createExpressions(random, imageCount, labelCount, expressionCount);
+        long indexedNanos = 0;
+        long linearNanos = 0;
+        int matches = 0;
+
+        for (Label label : expressions) {
+            long startNanos = System.nanoTime();
+            Optional<JobValidator.JobValidationResult> actual = validator.validate(label);
+            long indexedEndNanos = System.nanoTime();
+            Optional<String> expected = linearScan(label, cloudLabels, images);
+            long linearEndNanos = System.nanoTime();
+
+            indexedNanos += indexedEndNanos - startNanos;
+            linearNanos += linearEndNanos - indexedEndNanos;
+
+            assertEquals(label.getExpression(), expected.isPresent(), actual.isPresent());
+
+            if (expected.isPresent()) {
+                assertEquals(label.getExpression(), expected.get(), nullToEmpty(actual.get().imageName));
+                matches += 1;
+            }
+        }
+
+        // Matches on both sides of the comparison, or it does not test much
+        assertTrue(matches > 0);
+        assertTrue(matches < expressionCount);
+
+        LOG.info(String.format("JobValidator: images=%d labels=%d expressions=%d matches=%d indexed=%dms linear=%dms",
+                imageCount, labelCount, expressionCount, matches, indexedNanos / 1000000, linearNanos / 1000000));
+    }
+
+    /**
+     * First match in configuration order, the behavior before labeled images were indexed.
+     *
+     * @return name of the matching image, empty if the cloud labels match, absent if nothing matches
+     */
+    private static Optional<String> linearScan(Label label, Set<LabelAtom> cloudLabels, List<LabeledDockerImage> images) {
+        if (label.matches(cloudLabels)) {
+            return Optional.of("");
+        }
+
+        for (LabeledDockerImage image : images) {
+            if (label.matches(Sets.union(image.getLabels(), cloudLabels))) {
+                return Optional.of(image.imageName);
+            }
+        }
+
+        return Optional.absent();
+    }
+
+    private static LabeledDockerImage image(String name, String labels) {
+        return new LabeledDockerImage(name, labels, "");
+    }
+
+    private static void setImages(LabeledDockerImage... images) {
+        setImages(ImmutableList.copyOf(images));
+    }
+
+    private static void setImages(List<LabeledDockerImage> images) {
+        DockerJobGlobalConfiguration.get().setLabeledImages(images);
+    }
+
+    private static List<LabeledDockerImage> createImages(Random random, int imageCount, int labelCount) {
+        List<LabeledDockerImage> images = newArrayList();
+
+        for (int i = 0; i < imageCount; i++) {
+            StringBuilder labels = new StringBuilder("image-" + i);
+
+            for (int j = 0; j < 3; j++) {
+                labels.append(" label-").append(random.nextInt(labelCount));
+            }
+
+            images.add(image("image" + i, labels.toString()));
+        }
+
+        return images;
+    }
+
+    private static List<Label> createExpressions(Random random, int imageCount, int labelCount, int expressionCount) throws Exception {
+        List<Label> expressions = newArrayList();
+
+        for (int i = 0; i < expressionCount; i++) {
+            String a = "label-" + random.nextInt(labelCount);
+            String b = "label-" + random.nextInt(labelCount);
+            String image = "image-" + random.nextInt(imageCount);
+            String expression;
+
+            switch (random.nextInt(5)) {
+                case 0:
+                    expression = a + " && " + b;
+                    break;
+                case 1:
+                    expression = a + " || " + b;
+                    break;
+                case 2:
+                    expression = "docker && " + a;
+                    break;
+                case 3:
+                    expression = image + " || " + a;
+                    break;
+                default:
+                    expression = "!" + a + " && (" + b + " || " + image + ")";
+                    break;
+            }
+
+            // Make each expression unique, so every call is evaluated rather than cached
+            expressions.add(Label.parseExpression(expression + " || unique-" + i));
+        }
+
+        return expressions;
+    }
+}
@@ -0,0 +1,171 @@
+package com.github.dump247.jenkins.plugins.dockerjob.slaves;
+
+import com.google.common.base.Charsets;
+import net.sf.json.JSON;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DockerClientTest {
+    @Test
+    public void readsContentLengthBody() throws Exception {
+        InputStream input = stream(
+                "HTTP/1.1 200 OK\r\n" +
+                "Content-Type: application/json\r\n" +
+                "Content-Length: 40\r\n" +
+                "\r\n" +
+                "[{\"RepoTags\": [\"busybox:latest\"]}, {}]  ");
+
+        JSON response = DockerClient.readResponse(input, "/images/json");
+
+        JSONArray images = (JSONArray) response;
+        assertEquals(2, images.size());
+        assertEquals("busybox:latest", images.getJSONObject(0).getJSONArray("RepoTags").getString(0));
+        assertEquals(-1, input.read());
+    }
+
+    @Test
+    public void readsChunkedBody() throws Exception {
+        InputStream input = stream(
+                "HTTP/1.1 200 OK\r\n" +
+                "Transfer-Encoding: chunked\r\n" +
+                "\r\n" +
+                "a\r\n" +
+                "{\"Id\": \"ab\r\n" +
+                "4;name=value\r\n" +
+                "c12\"\r\n" +
+                "1\r\n" +
+                "}\r\n" +
+                "0\r\n" +
+                "\r\n");
+
+        JSONObject response = (JSONObject) DockerClient.readResponse(input, "/containers/abc123/json");
+
+        assertEquals("abc12", response.getString("Id"));
+        assertEquals(-1, input.read());
+    }
+
+    @Test
+    public void readsBatchOfResponses() throws Exception {
+        // Each response must be read exactly to its end, or the next response is corrupted
+        InputStream input = stream(
+                "HTTP/1.1 200 OK\r\n" +
+                "Transfer-Encoding: chunked\r\n" +
+                "\r\n" +
+                "b\r\n" +
+                "{\"Os\": \"l\"}\r\n" +
+                "0\r\n" +
+                "Trailer: value\r\n" +
+                "\r\n" +
+                "HTTP/1.1 204 No Content\r\n" +
+                "\r\n" +
+                "HTTP/1.1 200 OK\r\n" +
+                "Content-Length: 2\r\n" +
+                "\r\n" +
+                "[]" +
+                "HTTP/1.1 200 OK\r\n" +
+                "Connection: close\r\n" +
+                "\r\n" +
+                "{\"Version\": \"1.3.0\"}\n");
+
+        assertEquals("l", ((JSONObject) DockerClient.readResponse(input, "/info")).getString("Os"));
+        assertTrue(((JSONObject) DockerClient.readResponse(input, "/_ping")).isEmpty());
+        assertTrue(((JSONArray) DockerClient.readResponse(input, "/images/json")).isEmpty());
+        assertEquals("1.3.0", ((JSONObject) DockerClient.readResponse(input, "/version")).getString("Version"));
+    }
+
+    @Test
+    public void acceptsLineFeedWithoutCarriageReturn() throws Exception {
+        InputStream input = stream(
+                "HTTP/1.0 200 OK\n" +
+                "content-length: 2\n" +
+                "\n" +
+                "{}");
+
+        assertTrue(((JSONObject) DockerClient.readResponse(input, "/version")).isEmpty());
+    }
+
+    @Test
+    public void errorStatus() throws Exception {
+        InputStream input = stream(
+                "HTTP/1.1 404 Not Found\r\n" +
+                "Content-Length: 22\r\n" +
+                "\r\n" +
+                "No such image: busybox" +
+                "HTTP/1.1 200 OK\r\n");
+
+        try {
+            DockerClient.readResponse(input, "/images/busybox/json");
+            fail("Expected DockerException");
+        } catch (DockerException ex) {
+            assertEquals("/images/busybox/json", ex.getPath());
+            assertEquals(404, ex.getStatusCode());
+            assertEquals("Docker API error: path=/images/busybox/json status=404 message=No such image: busybox", ex.getMessage());
+        }
+
+        // The error body is consumed, so the rest of the batch can still be read
+        assertEquals("HTTP/1.1 200 OK", readRemaining(input).trim());
+    }
+
+    @Test
+    public void invalidStatusLine() throws Exception {
+        try {
+            DockerClient.readResponse(stream("E Unable to connect to docker\n"), "/version");
+            fail("Expected IOException");
+        } catch (IOException ex) {
+            assertEquals("Invalid docker API response: E Unable to connect to docker", ex.getMessage());
+        }
+    }
+
+    @Test(expected = EOFException.class)
+    public void connectionClosedBeforeResponse() throws Exception {
+        DockerClient.readResponse(stream(""), "/version");
+    }
+
+    @Test(expected = EOFException.class)
+    public void connectionClosedInContentLengthBody() throws Exception {
+        DockerClient.readResponse(stream("HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\n{}"), "/version");
+    }
+
+    @Test
+    public void readChunkedStopsAtEndOfBody() throws Exception {
+        InputStream input = stream("3\r\nabc\r\n10\r\n0123456789abcdef\r\n0\r\n\r\nnext");
+
+        assertEquals("abc0123456789abcdef", new String(DockerClient.readChunked(input), Charsets.UTF_8));
+        assertEquals("next", readRemaining(input));
+    }
+
+    @Test(expected = EOFException.class)
+    public void readChunkedConnectionClosedInHeader() throws Exception {
+        DockerClient.readChunked(stream("3\r\nabc\r\n"));
+    }
+
+    @Test(expected = EOFException.class)
+    public void readChunkedConnectionClosedInChunk() throws Exception {
+        DockerClient.readChunked(stream("a\r\nabc"));
+    }
+
+    private static InputStream stream(String content) {
+        return new ByteArrayInputStream(content.getBytes(Charsets.UTF_8));
+    }
+
+    private static String readRemaining(InputStream input) throws IOException {
+        StringBuilder result = new StringBuilder();
+        int value;
+
+        while ((value = input.read()) >= 0) {
+            result.append((char) value);
+        }
+
+        return result.toString();
+    }
+}
@@ -0,0 +1,372 @@
+package com.github.dump247.jenkins.plugins.dockerjob.slaves;
+
+import com.google.common.base.Charsets;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Logger;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static java.lang.String.format;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class FileUploaderTest {
+    private static final Logger LOG = Logger.getLogger(FileUploaderTest.class.getName());
+
+    /**
+     * System property that enables {@link #benchmark()}.
+     */
+    private static final String BENCHMARK_PROPERTY = "dockerjob.benchmark";
+
+    private static final String PATH = "/var/lib/jenkins-docker/slave/slave.jar.tmp";
+    private static final String LOOPBACK = "127.0.0.1";
+
+    private SftpStub _server;
+    private Socket _socket;
+
+    @Before
+    public void startServer() throws Exception {
+        _server = new SftpStub();
+    }
+
+    @After
+    public void stopServer() throws Exception {
+        if (_socket != null) {
+            _socket.close();
+        }
+
+        _server.stop();
+    }
+
+    @Test
+    public void writesContentWithinWindow() throws Exception {
+        byte[] content = randomBytes(14 * 1024 + 100);
+
+        long size = upload(new FileUploader(1024, 4, false), content);
+
+        _server.join();
+        assertEquals(content.length, size);
+        assertEquals(PATH, _server.path);
+        assertArrayEquals(content, _server.content());
+        assertEquals(15, _server.writes);
+        assertTrue(_server.closed);
+
+        // The server only answers once the uploader stops sending, so the uploader fills the window
+        assertEquals(4, _server.maxPending);
+    }
+
+    @Test
+    public void acceptsStatusOutOfOrder() throws Exception {
+        _server.reverse = true;
+        byte[] content = randomBytes(10 * 1024);
+
+        long size = upload(new FileUploader(1024, 3, false), content);
+
+        _server.join();
+        assertEquals(content.length, size);
+        assertArrayEquals(content, _server.content());
+        assertTrue(_server.maxPending <= 3);
+        assertTrue(_server.closed);
+    }
+
+    @Test
+    public void failsOnErrorStatus() throws Exception {
+        _server.failWrite = 5;
+        byte[] content = randomBytes(10 * 1024);
+
+        try {
+            upload(new FileUploader(1024, 4, false), content);
+            fail("Expected the upload to fail");
+        } catch (IOException ex) {
+            assertEquals(format("Error writing %s: No space left on device (SFTP status 4)", PATH), ex.getMessage());
+        }
+
+        assertFalse(_server.closed);
+    }
+
+    @Test
+    public void writesEmptyFile() throws Exception {
+        long size = upload(new FileUploader(1024, 4, false), new byte[0]);
+
+        _server.join();
+        assertEquals(0, size);
+        assertEquals(0, _server.writes);
+        assertEquals(0, _server.content().length);
+        assertTrue(_server.closed);
+    }
+
+    /**
+     * Compares a window of one request, which is how {@link com.trilead.ssh2.SFTPv3Client} writes,
+     * with the default window when each response is delayed by a simulated round trip. Only runs
+     * when the <code>dockerjob.benchmark</code> system property is true.
+     */
+    @Test
+    public void benchmark() throws Exception {
+        assumeTrue(Boolean.getBoolean(BENCHMARK_PROPERTY));
+        byte[] content = randomBytes(4 * 1024 * 1024);
+
+        for (int latencyMillis : new int[]{1, 10, 50}) {
+            for (int window : new int[]{1, FileUploader.DEFAULT_WINDOW}) {
+                _server.stop();
+                _server = new SftpStub();
+                _server.latencyMillis = latencyMillis;
+                _server.idleMillis = 2;
+
+                long startNanos = System.nanoTime();
+                upload(new FileUploader(FileUploader.DEFAULT_CHUNK_SIZE, window, false), content);
+                long elapsedNanos = System.nanoTime() - startNanos;
+
+                _server.join();
+                assertArrayEquals(content, _server.content());
+                _socket.close();
+
+                LOG.info(format("FileUploader: latency=%dms window=%d bytes=%d time=%dms throughput=%.1fMB/s",
+                        latencyMillis, window, content.length, elapsedNanos / 1000000,
+                        content.length / (elapsedNanos / 1e9) / (1024 * 1024)));
+            }
+        }
+    }
+
+    private long upload(FileUploader uploader, byte[] content) throws IOException {
+        _socket = new Socket(LOOPBACK, _server.getPort());
+        return uploader.writePipelined(_socket.getOutputStream(), _socket.getInputStream(), new ByteArrayInputStream(content), PATH);
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(1234).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * SFTP server that accepts one connection and handles the requests of a single upload.
+     * <p/>
+     * Write requests are answered once the client stops sending, which is when it has filled its
+     * window or sent the whole file. This exposes the most requests the client sends without
+     * waiting for a response.
+     */
+    private static class SftpStub implements Runnable {
+        private final ServerSocket _serverSocket;
+        private final Thread _thread;
+        private final List<Integer> _pending = newArrayList();
+        private byte[] _content = new byte[0];
+        private int _size;
+        private volatile Throwable _error;
+
+        /**
+         * Answer pending writes in reverse order.
+         */
+        public volatile boolean reverse;
+
+        /**
+         * Index of the write request to fail, or -1 to accept all writes.
+         */
+        public volatile int failWrite = -1;
+
+        /**
+         * Time to wait before each batch of responses, like the round trip time to a host.
+         */
+        public volatile int latencyMillis;
+
+        /**
+         * Time without requests after which the client is considered to be waiting for responses.
+         */
+        public volatile int idleMillis = 50;
+
+        public volatile String path;
+        public volatile boolean closed;
+        public volatile int writes;
+        public volatile int maxPending;
+
+        public SftpStub() throws IOException {
+            _serverSocket = new ServerSocket(0, 1, InetAddress.getByName(LOOPBACK));
+            _thread = new Thread(this, "sftp-stub");
+            _thread.setDaemon(true);
+            _thread.start();
+        }
+
+        public int getPort() {
+            return _serverSocket.getLocalPort();
+        }
+
+        public synchronized byte[] content() {
+            return Arrays.copyOf(_content, _size);
+        }
+
+        public void join() throws Exception {
+            _thread.join(10000);
+            assertFalse("SFTP stub did not finish", _thread.isAlive());
+
+            if (_error != null) {
+                throw new AssertionError(_error);
+            }
+        }
+
+        public void stop() throws Exception {
+            _serverSocket.close();
+            _thread.join(10000);
+        }
+
+        public void run() {
+            try {
+                Socket socket = _serverSocket.accept();
+
+                try {
+                    serve(new DataInputStream(new BufferedInputStream(socket.getInputStream())),
+                            new DataOutputStream(new BufferedOutputStream(socket.getOutputStream())));
+                } finally {
+                    socket.close();
+                }
+            } catch (EOFException ex) {
+                // Client closed the connection
+            } catch (Throwable ex) {
+                if (!_serverSocket.isClosed()) {
+                    _error = ex;
+                }
+            }
+        }
+
+        private void serve(DataInputStream in, DataOutputStream out) throws Exception {
+            while (!closed) {
+                if (!_pending.isEmpty() && isIdle(in)) {
+                    answerPending(out);
+                }
+
+                DataInputStream packet = readPacket(in);
+                int type = packet.readUnsignedByte();
+
+                if (type == 1) { // SSH_FXP_INIT
+                    assertEquals(3, packet.readInt());
+                    out.writeInt(5);
+                    out.writeByte(2); // SSH_FXP_VERSION
+                    out.writeInt(3);
+                    out.flush();
+                } else if (type == 3) { // SSH_FXP_OPEN
+                    int id = packet.readInt();
+                    path = readString(packet);
+                    assertEquals(0x02 | 0x08 | 0x10, packet.readInt());
+                    out.writeInt(1 + 4 + 4 + 1);
+                    out.writeByte(102); // SSH_FXP_HANDLE
+                    out.writeInt(id);
+                    out.writeInt(1);
+                    out.writeByte('h');
+                    out.flush();
+                } else if (type == 6) { // SSH_FXP_WRITE
+                    int id = packet.readInt();
+                    assertEquals("h", readString(packet));
+                    long offset = packet.readLong();
+                    byte[] data = new byte[packet.readInt()];
+                    packet.readFully(data);
+                    write(offset, data);
+
+                    if (writes == failWrite) {
+                        writeStatus(out, id, 4, "No space left on device");
+                        out.flush();
+                    } else {
+                        _pending.add(id);
+                        maxPending = Math.max(maxPending, _pending.size());
+                    }
+
+                    writes += 1;
+                } else if (type == 4) { // SSH_FXP_CLOSE
+                    assertTrue("File closed with pending writes", _pending.isEmpty());
+                    int id = packet.readInt();
+                    assertEquals("h", readString(packet));
+                    writeStatus(out, id, 0, "");
+                    out.flush();
+                    closed = true;
+                } else {
+                    throw new IOException("Unexpected SFTP request: " + type);
+                }
+            }
+        }
+
+        /**
+         * Check if the client stopped sending requests and is waiting for responses.
+         */
+        private boolean isIdle(DataInputStream in) throws Exception {
+            long deadline = System.currentTimeMillis() + idleMillis;
+
+            while (in.available() == 0) {
+                if (System.currentTimeMillis() >= deadline) {
+                    return true;
+                }
+
+                Thread.sleep(1);
+            }
+
+            return false;
+        }
+
+        private void answerPending(DataOutputStream out) throws Exception {
+            if (latencyMillis > 0) {
+                Thread.sleep(latencyMillis);
+            }
+
+            if (reverse) {
+                Collections.reverse(_pending);
+            }
+
+            for (int id : _pending) {
+                writeStatus(out, id, 0, "");
+            }
+
+            _pending.clear();
+            out.flush();
+        }
+
+        private synchronized void write(long offset, byte[] data) {
+            int end = (int) offset + data.length;
+
+            if (end > _content.length) {
+                _content = Arrays.copyOf(_content, Math.max(end, _content.length * 2));
+            }
+
+            System.arraycopy(data, 0, _content, (int) offset, data.length);
+            _size = Math.max(_size, end);
+        }
+
+        private static DataInputStream readPacket(DataInputStream in) throws IOException {
+            byte[] packet = new byte[in.readInt()];
+            in.readFully(packet);
+            return new DataInputStream(new ByteArrayInputStream(packet));
+        }
+
+        private static String readString(DataInputStream in) throws IOException {
+            byte[] value = new byte[in.readInt()];
+            in.readFully(value);
+            return new String(value, Charsets.UTF_8);
+        }
+
+        private static void writeStatus(DataOutputStream out, int id, int code, String message) throws IOException {
+            byte[] messageBytes = message.getBytes(Charsets.UTF_8);
+            out.writeInt(1 + 4 + 4 + 4 + messageBytes.length + 4);
+            out.writeByte(101); // SSH_FXP_STATUS
+            out.writeInt(id);
+            out.writeInt(code);
+            out.writeInt(messageBytes.length);
+            out.write(messageBytes);
+            out.writeInt(0); // Language tag
+        }
+    }
+}